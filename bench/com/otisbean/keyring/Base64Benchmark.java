@@ -0,0 +1,107 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.iharder.Base64;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base64Codec (java.util.Base64) against the iharder Base64 class it
+ * replaced, for item-sized and db-sized payloads.
+ *
+ * @author Dirk Bergstrom
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64Benchmark {
+
+	/**
+	 * 150 bytes is a typical item, 64MB a big db.
+	 */
+	@Param({"150", "65536", "67108864"})
+	public int size;
+
+	private byte[] data;
+	private String encoded;
+	private Base64Codec codec;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		data = new byte[size];
+		new Random(42).nextBytes(data);
+		encoded = Base64.encodeBytes(data);
+		codec = new Base64Codec();
+	}
+
+	@Benchmark
+	public String encodeIharder() {
+		return Base64.encodeBytes(data, 0, data.length);
+	}
+
+	@Benchmark
+	public String encodeCodec() {
+		return codec.encode(data, 0, data.length);
+	}
+
+	@Benchmark
+	public byte[] decodeIharder() throws Exception {
+		return Base64.decode(encoded);
+	}
+
+	@Benchmark
+	public ByteBuffer decodeCodec() {
+		return codec.decode(encoded);
+	}
+
+	@Benchmark
+	public void streamIharder() throws Exception {
+		OutputStream os = new Base64.OutputStream(OutputStream.nullOutputStream());
+		os.write(data);
+		os.close();
+	}
+
+	@Benchmark
+	public void streamCodec() throws Exception {
+		OutputStream os = Base64Codec.encodingStream(OutputStream.nullOutputStream());
+		os.write(data);
+		os.close();
+	}
+}
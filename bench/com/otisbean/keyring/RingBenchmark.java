@@ -0,0 +1,289 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the Ring crypto, JSON and I/O paths.
+ *
+ * Each benchmark runs against a synthetic Ring of itemCount items, built
+ * once per trial.  The per-call benchmarks (encrypt, decrypt, unlock/lock)
+ * walk the item list round-robin, so the larger rings also show the effect
+ * of the working set falling out of cache.
+ *
+ * Locking an Item that hasn't changed since it was unlocked keeps its old
+ * ciphertext, so itemUnlockLock, unlockAllLockAll and the Relocked export
+ * benchmarks only decrypt Items.  itemChangeLock and getExportDataChanged
+ * cover the path where every Item has changed and is encrypted again.
+ *
+ * Run with "ant bench", see build.xml.
+ *
+ * @author Dirk Bergstrom
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx6g"})
+public class RingBenchmark {
+
+	private static final char[] PASSWORD = "benchmark password".toCharArray();
+
+	@Param({"100", "10000", "1000000"})
+	public int itemCount;
+
+	private Ring ring;
+	private List<Item> items;
+	private String[] payloads;
+	private String[] cryptexts;
+	private ByteBuffer[] plainBuffers;
+	private ByteBuffer[] cryptBuffers;
+	private ByteBuffer outBuffer;
+	private int cursor;
+	private File jsonFile;
+	private File csvFile;
+
+	@SuppressWarnings("unchecked")
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		ring = new Ring(PASSWORD);
+		items = new ArrayList<Item>(itemCount);
+		for (int i = 0; i < itemCount; i++) {
+			Item item = new Item(ring, "user" + i, "pass-" + Integer.toHexString(i * 7919),
+					"https://host" + (i % 1000) + ".example.com/login",
+					"Some notes about item number " + i + ", long enough to be realistic.",
+					"Item " + i, "Category " + (i % 20), 1262304000000L + i,
+					1262304000000L + i, 1262304000000L + i);
+			ring.addItem(item);
+			items.add(item);
+		}
+		// A small sample of item-sized payloads for the raw encrypt/decrypt benchmarks
+		int samples = Math.min(itemCount, 1000);
+		payloads = new String[samples];
+		cryptexts = new String[samples];
+		for (int i = 0; i < samples; i++) {
+			JSONObject obj = new JSONObject();
+			obj.put("username", "user" + i);
+			obj.put("pass", "pass-" + i);
+			obj.put("url", "https://host" + i + ".example.com/login");
+			obj.put("notes", "Some notes about item number " + i);
+			payloads[i] = obj.toJSONString();
+			cryptexts[i] = ring.encrypt(payloads[i], Ring.ITEM_SALT_LENGTH);
+		}
+		plainBuffers = new ByteBuffer[samples];
+		cryptBuffers = new ByteBuffer[samples];
+		for (int i = 0; i < samples; i++) {
+			plainBuffers[i] = ByteBuffer.wrap(payloads[i].getBytes("UTF-8"));
+			cryptBuffers[i] = ring.encrypt(plainBuffers[i].duplicate(),
+					Ring.ITEM_SALT_LENGTH, null);
+		}
+		outBuffer = ByteBuffer.allocate(4096);
+
+		jsonFile = File.createTempFile("keyring-bench", ".json");
+		jsonFile.deleteOnExit();
+		csvFile = File.createTempFile("keyring-bench", ".csv");
+		csvFile.deleteOnExit();
+		ring.save(jsonFile.getPath());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		jsonFile.delete();
+		csvFile.delete();
+	}
+
+	/**
+	 * Locks every Item again before each call.  exportToCSV() leaves them
+	 * unlocked, so without this only its first call would decrypt anything.
+	 * They haven't changed, so they keep their ciphertext: the exports
+	 * start from a Ring as loaded from disk.  Per-invocation setup is only
+	 * used on the millisecond benchmarks, where its own cost doesn't show.
+	 */
+	@State(Scope.Benchmark)
+	public static class Relocked {
+		@Setup(Level.Invocation)
+		public void lock(RingBenchmark bench) throws Exception {
+			bench.ring.lockAll();
+		}
+	}
+
+	/**
+	 * Changes the password of every Item before each call, so that each one
+	 * has to be encrypted again when it's next locked or written out.
+	 */
+	@State(Scope.Benchmark)
+	public static class Changed {
+		@Setup(Level.Invocation)
+		public void change(RingBenchmark bench) throws Exception {
+			bench.ring.unlockAll();
+			for (Item item : bench.items) {
+				toggle(item);
+			}
+		}
+	}
+
+	/**
+	 * Change an unlocked Item's password, and back again on the next call,
+	 * so it doesn't grow.
+	 */
+	private static void toggle(Item item) throws Exception {
+		String pass = item.getPass();
+		item.setPass(pass.endsWith("!")
+				? pass.substring(0, pass.length() - 1) : pass + "!");
+	}
+
+	private int next(int limit) {
+		int i = cursor++;
+		if (cursor >= limit) {
+			cursor = 0;
+		}
+		return i;
+	}
+
+	@Benchmark
+	public String encrypt() throws Exception {
+		return ring.encrypt(payloads[next(payloads.length)], Ring.ITEM_SALT_LENGTH);
+	}
+
+	@Benchmark
+	public String decrypt() throws Exception {
+		return ring.decrypt(cryptexts[next(cryptexts.length)]);
+	}
+
+	@Benchmark
+	public ByteBuffer encryptBuffer() throws Exception {
+		return ring.encrypt(plainBuffers[next(plainBuffers.length)].duplicate(),
+				Ring.ITEM_SALT_LENGTH, outBuffer);
+	}
+
+	@Benchmark
+	public ByteBuffer decryptBuffer() throws Exception {
+		return ring.decrypt(cryptBuffers[next(cryptBuffers.length)].duplicate(),
+				outBuffer);
+	}
+
+	/**
+	 * Decrypts an Item.  It hasn't changed, so lock() keeps its ciphertext.
+	 */
+	@Benchmark
+	public String itemUnlockLock() throws Exception {
+		Item item = items.get(next(items.size()));
+		item.unlock();
+		String pass = item.getPass();
+		item.lock();
+		return pass;
+	}
+
+	/**
+	 * Decrypts an Item, changes it, and encrypts it again on lock().
+	 */
+	@Benchmark
+	public String itemChangeLock() throws Exception {
+		Item item = items.get(next(items.size()));
+		item.unlock();
+		toggle(item);
+		String pass = item.getPass();
+		item.lock();
+		return pass;
+	}
+
+	/**
+	 * Decryption only, as nothing changes in between.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int unlockAllLockAll() throws Exception {
+		ring.unlockAll();
+		ring.lockAll();
+		return items.size();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public boolean loadAndValidatePassword() throws Exception {
+		Ring loaded = new Ring();
+		loaded.load(jsonFile.getPath());
+		return loaded.validatePassword(PASSWORD);
+	}
+
+	@Benchmark
+	public boolean revalidatePassword() throws Exception {
+		return ring.validatePassword(PASSWORD);
+	}
+
+	/**
+	 * One user name among itemCount, with a typo.  The first call builds
+	 * the index.
+	 */
+	@Benchmark
+	public List<Item> search() throws Exception {
+		return ring.search("usr" + next(items.size()), 10);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public String getExportData(Relocked locked) throws Exception {
+		return ring.getExportData().toJSONString();
+	}
+
+	/**
+	 * getExportData() with every Item to encrypt again first.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public String getExportDataChanged(Changed changed) throws Exception {
+		return ring.getExportData().toJSONString();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void writeExportData(Relocked locked) throws Exception {
+		ring.writeExportData(OutputStream.nullOutputStream());
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long exportToCSV(Relocked locked) throws Exception {
+		ring.exportToCSV(csvFile.getPath());
+		return csvFile.length();
+	}
+}
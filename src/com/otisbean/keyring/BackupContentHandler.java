@@ -0,0 +1,251 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
+
+/**
+ * Streaming (SAX style) handler for both layers of a Keyring backup.
+ *
+ * The outer layer is {schema_version: 4, salt: "...", db: "..."}, where
+ * db is the encrypted payload.  The decrypted payload looks like
+ * {db: {title: {...}, ...}, categories: {...}, crypt: {...}, prefs: {...}}.
+ * The keys of the two layers don't collide, except for "db", which is a
+ * string on the outside and an object on the inside, so one handler copes
+ * with both.
+ *
+ * Items are built as soon as their JSON object closes, so the full db is
+ * never held as a tree of JSONObjects.  Only prefs, which are small and
+ * opaque to us, are collected as a JSONObject.
+ *
+ * Nothing is stored in the Ring; the caller copies the results over once
+ * the parse succeeds.
+ *
+ * @author Dirk Bergstrom
+ */
+class BackupContentHandler implements ContentHandler {
+
+	private final Ring ring;
+
+	/**
+	 * Keys of the object entries we're inside of, outermost first.
+	 */
+	private final LinkedList<String> path = new LinkedList<String>();
+
+	/**
+	 * Number of open objects and arrays.
+	 */
+	private int depth;
+
+	/**
+	 * Open containers while building the prefs subtree.
+	 */
+	private final LinkedList<Object> prefsStack = new LinkedList<Object>();
+
+	// Outer layer
+	String salt;
+	long schemaVersion = -1;
+	String cryptedDb;
+
+	// Decrypted payload
+	final Map<String, Item> items = new HashMap<String, Item>();
+	final Map<Integer, String> categories = new HashMap<Integer, String>();
+	String checkData;
+	JSONObject prefs;
+	/**
+	 * True if any item had per-attribute ciphertexts.
+	 */
+	boolean sawEncryptedFields;
+
+	// Fields of the item currently being read
+	private String itemTitle;
+	private int itemCategory;
+	private long itemCreated;
+	private long itemViewed;
+	private long itemChanged;
+	private String itemEncryptedData;
+	private String[] itemFields;
+	private String itemFieldsOf;
+
+	BackupContentHandler(Ring ring) {
+		this.ring = ring;
+	}
+
+	private boolean inPrefs() {
+		return ! path.isEmpty() && "prefs".equals(path.getFirst());
+	}
+
+	private boolean inItem() {
+		return depth == 3 && path.size() == 3 && "db".equals(path.getFirst());
+	}
+
+	private boolean inItemFields() {
+		return depth == 4 && path.size() == 4 && "db".equals(path.getFirst())
+			&& "encrypted_fields".equals(path.get(2));
+	}
+
+	/**
+	 * Dates are stored as an empty string if undefined.
+	 */
+	private static long toLong(Object value) {
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addPrefsValue(Object value) {
+		if (prefsStack.isEmpty()) {
+			if (value instanceof JSONObject) {
+				prefs = (JSONObject) value;
+			}
+		} else {
+			Object parent = prefsStack.getLast();
+			if (parent instanceof JSONArray) {
+				((JSONArray) parent).add(value);
+			} else {
+				((JSONObject) parent).put(path.getLast(), value);
+			}
+		}
+	}
+
+	public void startJSON() {
+	}
+
+	public void endJSON() {
+	}
+
+	public boolean startObject() {
+		depth++;
+		if (inPrefs()) {
+			JSONObject obj = new JSONObject();
+			addPrefsValue(obj);
+			prefsStack.add(obj);
+		} else if (depth == 3 && path.size() == 2 && "db".equals(path.getFirst())) {
+			itemTitle = path.getLast();
+			itemCategory = 0;
+			itemCreated = itemViewed = itemChanged = 0;
+			itemEncryptedData = null;
+			itemFields = null;
+			itemFieldsOf = null;
+		} else if (depth == 4 && path.size() == 3 && "db".equals(path.getFirst())
+				&& "encrypted_fields".equals(path.getLast())) {
+			itemFields = new String[Item.ENCRYPTED_ATTRS.length];
+		}
+		return true;
+	}
+
+	public boolean endObject() {
+		if (inPrefs()) {
+			prefsStack.removeLast();
+		} else if (depth == 3 && path.size() == 2 && "db".equals(path.getFirst())) {
+			Item item = new Item(ring, itemTitle, itemCategory,
+					itemCreated, itemViewed, itemChanged, itemEncryptedData);
+			if (null != itemFields) {
+				item.setEncryptedFields(itemFields, itemFieldsOf);
+				sawEncryptedFields = true;
+			}
+			items.put(path.getLast(), item);
+		}
+		depth--;
+		return true;
+	}
+
+	public boolean startObjectEntry(String key) {
+		path.add(key);
+		return true;
+	}
+
+	public boolean endObjectEntry() {
+		path.removeLast();
+		return true;
+	}
+
+	public boolean startArray() {
+		depth++;
+		if (inPrefs()) {
+			JSONArray arr = new JSONArray();
+			addPrefsValue(arr);
+			prefsStack.add(arr);
+		}
+		return true;
+	}
+
+	public boolean endArray() {
+		if (inPrefs()) {
+			prefsStack.removeLast();
+		}
+		depth--;
+		return true;
+	}
+
+	public boolean primitive(Object value) {
+		if (inPrefs()) {
+			addPrefsValue(value);
+			return true;
+		}
+		String key = path.isEmpty() ? null : path.getLast();
+		if (depth == 1 && path.size() == 1) {
+			if ("salt".equals(key)) {
+				salt = (String) value;
+			} else if ("schema_version".equals(key)) {
+				schemaVersion = toLong(value);
+			} else if ("db".equals(key)) {
+				cryptedDb = (String) value;
+			}
+		} else if (inItem()) {
+			if ("title".equals(key)) {
+				itemTitle = (String) value;
+			} else if ("category".equals(key)) {
+				itemCategory = (int) toLong(value);
+			} else if ("created".equals(key)) {
+				itemCreated = toLong(value);
+			} else if ("viewed".equals(key)) {
+				itemViewed = toLong(value);
+			} else if ("changed".equals(key)) {
+				itemChanged = toLong(value);
+			} else if ("encrypted_data".equals(key)) {
+				itemEncryptedData = (String) value;
+			}
+		} else if (inItemFields()) {
+			if ("of".equals(key)) {
+				itemFieldsOf = (String) value;
+			} else {
+				for (int i = 0; i < itemFields.length; i++) {
+					if (Item.ENCRYPTED_ATTRS[i].equals(key)) {
+						itemFields[i] = (String) value;
+					}
+				}
+			}
+		} else if (depth == 2 && path.size() == 2) {
+			String parent = path.getFirst();
+			if ("categories".equals(parent)) {
+				categories.put(Integer.parseInt(key), (String) value);
+			} else if ("crypt".equals(parent) && "checkData".equals(key)) {
+				checkData = (String) value;
+			}
+		}
+		return true;
+	}
+}
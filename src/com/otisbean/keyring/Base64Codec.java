@@ -0,0 +1,149 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Base64 encoding of Ring payloads, on top of java.util.Base64.
+ *
+ * Instances keep their output buffers from one call to the next, so
+ * encoding and decoding item-sized blobs doesn't allocate anything beyond
+ * the input bytes and the result String.  That also means an instance
+ * isn't thread-safe; Ring keeps one per thread in its CipherEngine.  The
+ * static methods are for the one-off (key derivation) and whole-db cases,
+ * where there's nothing worth keeping.
+ *
+ * @author Dirk Bergstrom
+ */
+final class Base64Codec {
+
+	/**
+	 * Base64 is pure ASCII, and Latin-1 maps bytes to chars one to one,
+	 * which is the fastest String conversion there is.
+	 */
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static final Base64.Encoder ENCODER = Base64.getEncoder();
+	private static final Base64.Encoder UNPADDED_ENCODER = ENCODER.withoutPadding();
+	private static final Base64.Decoder DECODER = Base64.getDecoder();
+	/**
+	 * Skips line breaks and other non-alphabet characters, which some
+	 * encoders insert.
+	 */
+	private static final Base64.Decoder LENIENT_DECODER = Base64.getMimeDecoder();
+
+	private final Sink sink = new Sink();
+	private byte[] decoded;
+
+	/**
+	 * A ByteArrayOutputStream that lets us read its buffer without copying.
+	 */
+	private static class Sink extends ByteArrayOutputStream {
+		byte[] buffer() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Encode len bytes of data, starting at off.
+	 */
+	String encode(byte[] data, int off, int len) {
+		sink.reset();
+		OutputStream os = ENCODER.wrap(sink);
+		try {
+			os.write(data, off, len);
+			// Writes the final quantum and padding
+			os.close();
+		} catch (IOException e) {
+			// ByteArrayOutputStream doesn't throw
+			throw new RuntimeException(e);
+		}
+		return new String(sink.buffer(), 0, sink.size(), LATIN1);
+	}
+
+	/**
+	 * Decode into this codec's buffer.
+	 *
+	 * @return A buffer wrapping the decoded bytes, only valid until the
+	 * next call.  The array is kept, so a caller that decrypts into it has
+	 * to zero it afterwards.
+	 * @throws IllegalArgumentException If encoded isn't valid Base64.
+	 */
+	ByteBuffer decode(String encoded) {
+		byte[] src = encoded.getBytes(LATIN1);
+		int max = src.length / 4 * 3 + 3;
+		if (null == decoded || decoded.length < max) {
+			decoded = new byte[Math.max(max, null == decoded ? 0 : decoded.length * 2)];
+		}
+		int len;
+		try {
+			len = DECODER.decode(src, decoded);
+		} catch (IllegalArgumentException e) {
+			len = LENIENT_DECODER.decode(src, decoded);
+		}
+		return ByteBuffer.wrap(decoded, 0, len);
+	}
+
+	/**
+	 * Decode into a new array, for payloads too big to keep a buffer for.
+	 *
+	 * @throws IllegalArgumentException If encoded isn't valid Base64.
+	 */
+	static byte[] decodeOnce(String encoded) {
+		byte[] src = encoded.getBytes(LATIN1);
+		try {
+			return DECODER.decode(src);
+		} catch (IllegalArgumentException e) {
+			return LENIENT_DECODER.decode(src);
+		}
+	}
+
+	/**
+	 * Encode len bytes of data, starting at off, without keeping a buffer,
+	 * for payloads too big to keep one for.
+	 */
+	static String encodeOnce(byte[] data, int off, int len) {
+		return ENCODER.encodeToString(off == 0 && len == data.length
+				? data : Arrays.copyOfRange(data, off, off + len));
+	}
+
+	/**
+	 * Encode without trailing "=" padding, as the Javascript SHA-256 library
+	 * used by Keyring does.
+	 */
+	static String encodeUnpadded(byte[] data) {
+		return UNPADDED_ENCODER.encodeToString(data);
+	}
+
+	/**
+	 * @return A stream that Base64 encodes everything written to it into os.
+	 * Closing it writes the padding and closes os.
+	 */
+	static OutputStream encodingStream(OutputStream os) {
+		return ENCODER.wrap(os);
+	}
+}
@@ -0,0 +1,552 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes Keyring backups over HTTP, for Ring.load() and save()
+ * with a URL.
+ *
+ * Downloads ask for gzip, and send the ETag of the last copy of the URL
+ * they got back in If-None-Match.  A "304 Not Modified" is answered from
+ * that copy, which is kept, still encrypted, in memory.  Bodies over
+ * MAX_CACHED aren't kept, and the least recently used are dropped to keep
+ * the total under MAX_CACHE_TOTAL.  Uploads are sent as multipart/form-data, which unlike
+ * application/x-www-form-urlencoded carries the Base64 as is, and are
+ * streamed: the caller writes the body while the client sends it, so it is
+ * never all in memory at once.
+ *
+ * One instance, and its connections and cache, is shared by all Rings.
+ *
+ * @author Dirk Bergstrom
+ */
+final class HttpTransport {
+
+	private static final Logger LOG = Logger.getLogger(HttpTransport.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Size of the buffers an upload is sent in.
+	 */
+	private static final int CHUNK = 16 * 1024;
+	/**
+	 * Chunks an upload can get ahead of the network by.
+	 */
+	private static final int CHUNKS_AHEAD = 16;
+	private static final long POLL_MILLIS = 100;
+	/**
+	 * Largest body kept for If-None-Match.
+	 */
+	static final int MAX_CACHED = 16 * 1024 * 1024;
+	/**
+	 * Most bytes kept for all URLs together.
+	 */
+	static final int MAX_CACHE_TOTAL = 32 * 1024 * 1024;
+
+	private static class Default {
+		static final HttpTransport INSTANCE = new HttpTransport();
+	}
+
+	/**
+	 * The last copy of a URL that came with an ETag.
+	 */
+	private static class Cached {
+		final String etag;
+		final byte[] body;
+
+		Cached(String etag, byte[] body) {
+			this.etag = etag;
+			this.body = body;
+		}
+	}
+
+	private final HttpClient client;
+	/**
+	 * Least recently used first.  Guards itself, cacheSize and versions.
+	 */
+	private final LinkedHashMap<String, Cached> cache =
+		new LinkedHashMap<String, Cached>(16, 0.75f, true);
+	private long cacheSize;
+	/**
+	 * Bumped for a URL by post(), so a download that started before the
+	 * upload can't put the old body back when it finishes.
+	 */
+	private final Map<String, Integer> versions = new HashMap<String, Integer>();
+	private final SecureRandom rnd = new SecureRandom();
+
+	HttpTransport() {
+		client = HttpClient.newBuilder()
+			.followRedirects(HttpClient.Redirect.NORMAL)
+			.connectTimeout(Duration.ofSeconds(30))
+			.build();
+	}
+
+	static HttpTransport getDefault() {
+		return Default.INSTANCE;
+	}
+
+	/**
+	 * Start a download.  The client waits for the response without tying up
+	 * a thread; the body is read by whoever reads the stream.
+	 *
+	 * @param listener Told about bytes received, against the Content-Length,
+	 * or null.
+	 * @return The body, uncompressed.  It has to be read to the end to be
+	 * kept for the next If-None-Match.
+	 */
+	CompletableFuture<InputStream> fetch(final String url,
+			final Ring.LoadListener listener) {
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+			.header("Accept-Encoding", "gzip");
+		final Cached cached = cached(url);
+		if (null != cached) {
+			request.header("If-None-Match", cached.etag);
+		}
+		return client.sendAsync(request.GET().build(),
+				HttpResponse.BodyHandlers.ofInputStream())
+			.thenApply(new Function<HttpResponse<InputStream>, InputStream>() {
+				public InputStream apply(HttpResponse<InputStream> response) {
+					try {
+						return open(url, response, cached, listener);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}
+			});
+	}
+
+	/**
+	 * fetch(), waiting for the response.
+	 *
+	 * @throws InterruptedIOException If the calling thread was interrupted
+	 * while waiting.
+	 */
+	InputStream open(String url, Ring.LoadListener listener) throws IOException {
+		CompletableFuture<InputStream> download = fetch(url, listener);
+		try {
+			return download.get();
+		} catch (InterruptedException e) {
+			// Let go of the connection if it turns up after all
+			download.thenAccept(new Consumer<InputStream>() {
+				public void accept(InputStream is) {
+					closeQuietly(is);
+				}
+			});
+			throw new InterruptedIOException("Cancelled");
+		} catch (ExecutionException e) {
+			throw ioException(e.getCause());
+		}
+	}
+
+	private InputStream open(String url, HttpResponse<InputStream> response,
+			Cached cached, Ring.LoadListener listener) throws IOException {
+		int status = response.statusCode();
+		if (304 == status && null != cached) {
+			response.body().close();
+			LOG.fine(url + " is unchanged since " + cached.etag);
+			if (null != listener) {
+				listener.read(cached.body.length, cached.body.length);
+			}
+			return new ByteArrayInputStream(cached.body);
+		}
+		if (status / 100 != 2) {
+			response.body().close();
+			throw new IOException("Failed to load URL '" + url + "': HTTP " + status);
+		}
+		long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+		// Counted before decompression, to match the Content-Length
+		InputStream is = ProgressInputStream.wrap(response.body(), length, listener);
+		String encoding = response.headers().firstValue("Content-Encoding").orElse("");
+		if (encoding.equalsIgnoreCase("gzip")) {
+			is = new GZIPInputStream(is, CHUNK);
+		} else if (encoding.length() > 0 && ! encoding.equalsIgnoreCase("identity")) {
+			is.close();
+			throw new IOException("Unsupported Content-Encoding from '" + url + "': " + encoding);
+		}
+		String etag = response.headers().firstValue("ETag").orElse(null);
+		if (null == etag || length > MAX_CACHED) {
+			uncache(url, false);
+			return is;
+		}
+		return new CachingInputStream(is, url, etag, version(url));
+	}
+
+	private Cached cached(String url) {
+		synchronized (cache) {
+			return cache.get(url);
+		}
+	}
+
+	private int version(String url) {
+		synchronized (cache) {
+			Integer version = versions.get(url);
+			return null == version ? 0 : version;
+		}
+	}
+
+	/**
+	 * Keep body, unless url has been uploaded to since version.
+	 */
+	private void cache(String url, int version, Cached body) {
+		synchronized (cache) {
+			if (version != version(url)) {
+				return;
+			}
+			uncache(url, false);
+			cache.put(url, body);
+			cacheSize += body.body.length;
+			Iterator<Cached> eldest = cache.values().iterator();
+			while (cacheSize > MAX_CACHE_TOTAL) {
+				cacheSize -= eldest.next().body.length;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param changed The URL is being changed, so downloads already under
+	 * way are out of date.
+	 */
+	private void uncache(String url, boolean changed) {
+		synchronized (cache) {
+			Cached dropped = cache.remove(url);
+			if (null != dropped) {
+				cacheSize -= dropped.body.length;
+			}
+			if (changed) {
+				versions.put(url, version(url) + 1);
+			}
+		}
+	}
+
+	/**
+	 * Keeps a copy of what's read through it, which goes in the cache once
+	 * the end is reached, unless it grows past MAX_CACHED.
+	 */
+	private class CachingInputStream extends FilterInputStream {
+		private final String url;
+		private final String etag;
+		private final int version;
+		private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+		CachingInputStream(InputStream in, String url, String etag, int version) {
+			super(in);
+			this.url = url;
+			this.etag = etag;
+			this.version = version;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0) {
+				finished();
+			} else if (null != copy) {
+				copy.write(b);
+				checkSize();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n < 0) {
+				finished();
+			} else if (null != copy) {
+				copy.write(b, off, n);
+				checkSize();
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Read through the copy instead
+			byte[] skipped = new byte[(int) Math.min(n, CHUNK)];
+			return Math.max(0, read(skipped));
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void checkSize() {
+			if (copy.size() > MAX_CACHED) {
+				copy = null;
+				uncache(url, false);
+			}
+		}
+
+		private void finished() {
+			if (null != copy) {
+				cache(url, version, new Cached(etag, copy.toByteArray()));
+				copy = null;
+			}
+		}
+	}
+
+	/**
+	 * Start a POST of a form with one field, the contents of which are
+	 * written to the returned Upload.
+	 *
+	 * @param gzip Compress the request body, which the server has to be set
+	 * up to accept.
+	 */
+	Upload post(String url, String field, boolean gzip) throws IOException {
+		// Whatever we had is about to be out of date
+		uncache(url, true);
+		byte[] random = new byte[12];
+		rnd.nextBytes(random);
+		// Base64 has no '-', so can't contain the boundary
+		String boundary = "----KeyringFormBoundary" +
+			Base64Codec.encodeUnpadded(random).replace('+', '-').replace('/', '_');
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+			.header("Content-Type", "multipart/form-data; boundary=" + boundary);
+		if (gzip) {
+			request.header("Content-Encoding", "gzip");
+		}
+		return new Upload(url, request, field, boundary, gzip);
+	}
+
+	/**
+	 * An upload in progress.  The field's contents are written to the
+	 * Upload, which hands them to the client in CHUNK sized buffers, waiting
+	 * when it gets more than CHUNKS_AHEAD ahead of the network.
+	 */
+	class Upload extends OutputStream {
+		private final String url;
+		private final String boundary;
+		private final SubmissionPublisher<ByteBuffer> publisher =
+			new SubmissionPublisher<ByteBuffer>(
+					ForkJoinPool.commonPool(), CHUNKS_AHEAD);
+		private final CountDownLatch subscribed = new CountDownLatch(1);
+		private final CompletableFuture<HttpResponse<String>> response;
+		/**
+		 * Where the field's contents go: a GZIPOutputStream, or this.
+		 */
+		private final OutputStream body;
+		private byte[] buf = new byte[CHUNK];
+		private int count;
+		private boolean finished;
+
+		Upload(String url, HttpRequest.Builder request, String field,
+				String boundary, boolean gzip) throws IOException {
+			this.url = url;
+			this.boundary = boundary;
+			Flow.Publisher<ByteBuffer> source = new Flow.Publisher<ByteBuffer>() {
+				public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+					publisher.subscribe(subscriber);
+					subscribed.countDown();
+				}
+			};
+			response = client.sendAsync(
+					request.POST(HttpRequest.BodyPublishers.fromPublisher(source)).build(),
+					HttpResponse.BodyHandlers.ofString(UTF8));
+			body = gzip ? new GZIPOutputStream(new Unclosable(), CHUNK) : new Unclosable();
+			body.write(("--" + boundary + "\r\n" +
+					"Content-Disposition: form-data; name=\"" + field + "\"\r\n" +
+					"\r\n").getBytes(UTF8));
+		}
+
+		/**
+		 * Kept apart from this, so that closing the GZIPOutputStream writes
+		 * the gzip trailer, but the Upload stays open for finish().
+		 */
+		private class Unclosable extends OutputStream {
+			@Override
+			public void write(int b) throws IOException {
+				if (count == buf.length) {
+					send();
+				}
+				buf[count++] = (byte) b;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					if (count == buf.length) {
+						send();
+					}
+					int n = Math.min(len, buf.length - count);
+					System.arraycopy(b, off, buf, count, n);
+					count += n;
+					off += n;
+					len -= n;
+				}
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			body.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			body.write(b, off, len);
+		}
+
+		/**
+		 * Hand over the current buffer, waiting for the client to take it.
+		 */
+		private void send() throws IOException {
+			ByteBuffer chunk = ByteBuffer.wrap(buf, 0, count);
+			buf = new byte[CHUNK];
+			count = 0;
+			try {
+				while (! subscribed.await(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+					checkResponse();
+				}
+				// A timed offer doesn't give up when interrupted, only passes
+				// the interrupt on
+				while (publisher.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS, null) < 0) {
+					ProgressInputStream.checkInterrupted();
+					checkResponse();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Cancelled");
+			}
+		}
+
+		/**
+		 * A response before the whole body is sent can only be a failure.
+		 */
+		private void checkResponse() throws IOException {
+			if (response.isDone()) {
+				check(await());
+				throw new IOException("Upload to URL '" + url + "' ended early");
+			}
+		}
+
+		/**
+		 * Finish the body, and wait for the response.
+		 *
+		 * @return The response body.
+		 * @throws IOException If the server didn't answer with a 2xx.
+		 */
+		String finish() throws IOException {
+			try {
+				body.write(("\r\n--" + boundary + "--\r\n").getBytes(UTF8));
+				body.close();
+				if (count > 0) {
+					send();
+				}
+				publisher.close();
+			} catch (IOException e) {
+				publisher.closeExceptionally(e);
+				throw e;
+			} catch (RuntimeException e) {
+				publisher.closeExceptionally(e);
+				throw e;
+			}
+			// Only now is there nothing left for abort() to do
+			finished = true;
+			return check(await());
+		}
+
+		/**
+		 * Give up on an unfinished upload, so the server gets an incomplete
+		 * request rather than a truncated backup.
+		 */
+		void abort(Throwable cause) {
+			if (! finished) {
+				finished = true;
+				publisher.closeExceptionally(cause);
+			}
+		}
+
+		@Override
+		public void close() {
+			// Only finish() and abort() end the request
+		}
+
+		private HttpResponse<String> await() throws IOException {
+			try {
+				return response.get();
+			} catch (InterruptedException e) {
+				abort(e);
+				throw new InterruptedIOException("Cancelled");
+			} catch (ExecutionException e) {
+				throw ioException(e.getCause());
+			}
+		}
+
+		private String check(HttpResponse<String> response) throws IOException {
+			if (response.statusCode() / 100 != 2) {
+				throw new IOException("Failed to save to URL '" + url + "': HTTP " +
+						response.statusCode() + " " + response.body());
+			}
+			return response.body();
+		}
+	}
+
+	private static IOException ioException(Throwable cause) {
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		return new IOException(cause);
+	}
+
+	private static void closeQuietly(InputStream is) {
+		try {
+			is.close();
+		} catch (IOException e) {
+			// Nothing to be done
+		}
+	}
+}
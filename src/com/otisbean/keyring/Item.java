@@ -19,7 +19,12 @@
  */
 package com.otisbean.keyring;
 
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
 
 import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
@@ -28,11 +33,46 @@ import org.json.simple.parser.ParseException;
 /**
  * A single item on a Keyring.
  *
+ * Different Items of one Ring can be locked and unlocked from different
+ * threads at the same time; the methods touching the encrypted attributes
+ * are synchronized so that a single Item stays consistent too.
+ *
+ * If the Ring is in field crypto mode (see Ring.setFieldCrypto()), each
+ * encrypted attribute is also kept encrypted on its own, next to the
+ * encrypted_data blob that the phone understands.  The getters of a locked
+ * Item then decrypt just the one attribute, and leave the Item locked.
+ *
+ * Items sort by title, in the collation order of the default locale.  The
+ * title's CollationKey is kept, so sorting doesn't collate each title over
+ * again on every comparison.
+ *
  * @author Dirk Bergstrom
  */
 public class Item implements JSONAware, Comparable<Item> {
 	
 	// ENCRYPTED_ATTRS: ['username', 'pass', 'url', 'notes'],
+	static final String[] ENCRYPTED_ATTRS = { "username", "pass", "url", "notes" };
+	private static final int USERNAME = 0;
+	private static final int PASS = 1;
+	private static final int URL = 2;
+	private static final int NOTES = 3;
+	private static final int ALL_FIELDS = (1 << ENCRYPTED_ATTRS.length) - 1;
+	/**
+	 * Attributes encrypted on their own are padded to a multiple of this
+	 * many bytes, so a backup doesn't give away how long each one is.
+	 */
+	private static final int FIELD_PAD = 64;
+	/**
+	 * What an empty pad adds to the JSON: ,"pad":""
+	 */
+	private static final int PAD_OVERHEAD = 9;
+
+	/**
+	 * Thread-safe; RuleBasedCollator synchronizes getCollationKey().
+	 */
+	private static final Collator COLLATOR = Collator.getInstance();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	
 	// PLAINTEXT_ATTRS: ['title', 'category', 'created', 'viewed', 'changed'],
 
@@ -42,12 +82,32 @@ public class Item implements JSONAware, Comparable<Item> {
 	private String url;
 	private String notes;
 	private String title;
+	/**
+	 * Made on first use, and dropped by setTitle().
+	 */
+	private volatile CollationKey titleKey;
 	private int category;
 	private long created;
 	private long viewed;
 	private long changed;
 	private String encryptedData;
 	private boolean locked;
+	/**
+	 * One ciphertext per ENCRYPTED_ATTRS entry, or null.  Only trusted if
+	 * fieldsOf is the fingerprint of encryptedData, since the phone rewrites
+	 * encrypted_data without knowing about these.
+	 */
+	private String[] encryptedFields;
+	private String fieldsOf;
+	private boolean fieldsChecked;
+	/**
+	 * Bit mask of the ENCRYPTED_ATTRS changed since the last unlock.
+	 */
+	private int dirtyFields;
+	/**
+	 * This Item's place in the Ring's PlaintextCache, guarded by the cache.
+	 */
+	PlaintextCache.Entry cacheEntry;
 	
 	/**
 	 * Create an Item given all the values.
@@ -100,23 +160,53 @@ public class Item implements JSONAware, Comparable<Item> {
 		this.ring = ring;
 		encryptedData = (String) rawItem.get("encrypted_data");
 		title = (String) rawItem.get("title");
-		Object tmp = rawItem.get("category");
-		category = (int) (null == tmp ? 0 : (Long) tmp);
-		tmp = rawItem.get("created");
-		created = null == tmp ? 0 : (Long) tmp;
-		tmp = rawItem.get("viewed");
-		viewed = null == tmp ? 0 : (Long) tmp;
-		tmp = rawItem.get("changed");
-		changed = null == tmp ? 0 : (Long) tmp;
+		category = (int) toLong(rawItem.get("category"));
+		created = toLong(rawItem.get("created"));
+		viewed = toLong(rawItem.get("viewed"));
+		changed = toLong(rawItem.get("changed"));
+		JSONObject fields = (JSONObject) rawItem.get("encrypted_fields");
+		if (null != fields) {
+			String[] crypts = new String[ENCRYPTED_ATTRS.length];
+			for (int i = 0; i < crypts.length; i++) {
+				crypts[i] = (String) fields.get(ENCRYPTED_ATTRS[i]);
+			}
+			setEncryptedFields(crypts, (String) fields.get("of"));
+		}
 		// TODO Unlock and re-lock the item to validate that the encrypted data is valid?
 		//unlock();
 		//lock();
 		locked = true;
 	}
 
+	/**
+	 * Create an item from values streamed out of a backup file.
+	 * 
+	 * As with the JSONObject constructor, the encrypted_data blob is used
+	 * as-is.
+	 */
+	Item(Ring ring, String title, int category, long created, long viewed,
+			long changed, String encryptedData) {
+		super();
+		this.ring = ring;
+		this.title = title;
+		this.category = category;
+		this.created = created;
+		this.viewed = viewed;
+		this.changed = changed;
+		this.encryptedData = encryptedData;
+		locked = true;
+	}
+
+	/**
+	 * Dates are stored as an empty string if undefined.
+	 */
+	private static long toLong(Object value) {
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
-	public String toJSONString() {
+	public synchronized String toJSONString() {
 		if (! locked) {
 			try {
 				lock();
@@ -134,32 +224,187 @@ public class Item implements JSONAware, Comparable<Item> {
 		itemJson.put("viewed", viewed == 0 ? "" : viewed);
 		itemJson.put("changed", changed == 0 ? "" : changed);
 		itemJson.put("encrypted_data", encryptedData);
+		if (ring.isFieldCrypto() && fieldsCurrent()) {
+			JSONObject fields = new JSONObject();
+			fields.put("of", fieldsOf);
+			for (int i = 0; i < ENCRYPTED_ATTRS.length; i++) {
+				fields.put(ENCRYPTED_ATTRS[i], encryptedFields[i]);
+			}
+			itemJson.put("encrypted_fields", fields);
+		}
 
 		return itemJson.toJSONString();
 	}
+
+	/**
+	 * Set the per-attribute ciphertexts read from a backup file.
+	 * 
+	 * @param crypts In ENCRYPTED_ATTRS order.
+	 * @param of Fingerprint of the encrypted_data they were made along with.
+	 */
+	synchronized void setEncryptedFields(String[] crypts, String of) {
+		encryptedFields = crypts;
+		fieldsOf = of;
+		fieldsChecked = false;
+	}
+
+	/**
+	 * @return True if there are per-attribute ciphertexts, and they match
+	 * encryptedData.  They're checked once, and dropped if they don't.
+	 */
+	private boolean fieldsCurrent() {
+		if (null == encryptedFields) {
+			return false;
+		}
+		if (! fieldsChecked) {
+			if (null == encryptedData || ! fingerprint(encryptedData).equals(fieldsOf)) {
+				encryptedFields = null;
+				fieldsOf = null;
+				return false;
+			}
+			fieldsChecked = true;
+		}
+		return true;
+	}
+
+	/**
+	 * A short digest of an encrypted_data blob.  It says nothing about the
+	 * plaintext, since the blob is already ciphertext.
+	 */
+	private static String fingerprint(String crypted) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] hash = md.digest(crypted.getBytes(UTF8));
+			return Base64Codec.encodeUnpadded(Arrays.copyOf(hash, 12));
+		} catch (GeneralSecurityException e) {
+			// Every JRE has SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return True if a locked Item can decrypt attributes one at a time.
+	 */
+	private boolean hasFieldCrypto() {
+		return ring.isFieldCrypto() && fieldsCurrent();
+	}
+
+	/**
+	 * Decrypt a single attribute, leaving the Item locked.
+	 */
+	private String decryptField(int attr)
+			throws GeneralSecurityException, KeyringException {
+		if (null == encryptedFields[attr]) {
+			return null;
+		}
+		JSONObject obj;
+		try {
+			obj = (JSONObject) ring.getParser().parse(ring.decrypt(encryptedFields[attr]));
+		} catch (ParseException e) {
+			throw new KeyringException("Unparseable JSON data: " + e);
+		}
+		return (String) obj.get(ENCRYPTED_ATTRS[attr]);
+	}
 	
+	/**
+	 * Encrypt the plaintext attributes and forget them.
+	 * 
+	 * If none of them were changed since the last unlock, the existing
+	 * encrypted_data is kept as it is, so saving after just looking at an
+	 * Item doesn't cost an encryption, and doesn't change the backup.
+	 */
 	@SuppressWarnings("unchecked")
-	public void lock() throws GeneralSecurityException, KeyringException {
+	public synchronized void lock() throws GeneralSecurityException, KeyringException {
 		if (locked) {
 			throw new KeyringException("Locking an already locked record is wrong");
 		}
-		JSONObject crypted = new JSONObject();
-		crypted.put("username", username);
-		crypted.put("pass", pass);
-		crypted.put("url", url);
-		crypted.put("notes", notes);
-		encryptedData = ring.encrypt(crypted.toJSONString(), Ring.ITEM_SALT_LENGTH);
+		boolean fieldsWereCurrent = fieldsCurrent();
+		if (null == encryptedData || 0 != dirtyFields) {
+			JSONObject crypted = new JSONObject();
+			crypted.put("username", username);
+			crypted.put("pass", pass);
+			crypted.put("url", url);
+			crypted.put("notes", notes);
+			encryptedData = ring.encrypt(crypted.toJSONString(), Ring.ITEM_SALT_LENGTH);
+		}
+		if (ring.isFieldCrypto()) {
+			// Only the changed attributes, if the rest are still good
+			encryptFields(fieldsWereCurrent ? dirtyFields : ALL_FIELDS);
+		} else if (! fieldsWereCurrent || 0 != dirtyFields) {
+			encryptedFields = null;
+			fieldsOf = null;
+		}
+		dirtyFields = 0;
 		username = pass = url = notes = "";
 		locked = true;
+		PlaintextCache cache = ring.getPlaintextCache();
+		if (null != cache) {
+			cache.released(this);
+		}
 	}
 	
-	public void unlock() throws GeneralSecurityException, KeyringException {
+	/**
+	 * Encrypt attributes on their own, as {"name": value, "pad": spaces},
+	 * so the salt can be found the same way as for encrypted_data.  The pad
+	 * brings the plaintext up to a multiple of FIELD_PAD bytes, and is
+	 * ignored by decryptField().  A null value gets a null ciphertext.
+	 * 
+	 * @param which Bit mask of the ENCRYPTED_ATTRS indexes to encrypt.
+	 */
+	@SuppressWarnings("unchecked")
+	private void encryptFields(int which) throws GeneralSecurityException {
+		String[] values = { username, pass, url, notes };
+		String[] crypts = null == encryptedFields
+			? new String[values.length] : encryptedFields;
+		for (int i = 0; i < values.length; i++) {
+			if (0 == (which & (1 << i))) {
+				continue;
+			}
+			crypts[i] = null;
+			if (null != values[i]) {
+				JSONObject field = new JSONObject();
+				field.put(ENCRYPTED_ATTRS[i], values[i]);
+				crypts[i] = ring.encrypt(padded(field), Ring.ITEM_SALT_LENGTH);
+			}
+		}
+		encryptedFields = crypts;
+		fieldsOf = fingerprint(encryptedData);
+		fieldsChecked = true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static String padded(JSONObject field) {
+		int length = field.toJSONString().getBytes(UTF8).length + PAD_OVERHEAD;
+		char[] pad = new char[(FIELD_PAD - length % FIELD_PAD) % FIELD_PAD];
+		Arrays.fill(pad, ' ');
+		field.put("pad", new String(pad));
+		return field.toJSONString();
+	}
+
+	/**
+	 * Note a change made through a setter, unless the value is the same.
+	 */
+	private void changed(int attr, String oldValue, String newValue) {
+		if (null == oldValue ? null != newValue : ! oldValue.equals(newValue)) {
+			dirtyFields |= 1 << attr;
+			ring.itemTextChanged(this);
+		}
+	}
+
+	/**
+	 * @return True if an attribute has been changed since the last unlock.
+	 */
+	public synchronized boolean isDirty() {
+		return 0 != dirtyFields;
+	}
+
+	public synchronized void unlock() throws GeneralSecurityException, KeyringException {
 		String decryptedData;
 		decryptedData = ring.decrypt(encryptedData);
 
         JSONObject obj;
 		try {
-			obj = (JSONObject) ring.parser.parse(decryptedData);
+			obj = (JSONObject) ring.getParser().parse(decryptedData);
 		} catch (ParseException e) {
 			// ParseException's toString() method returns a good error message
 			throw new KeyringException("Unparseable JSON data: " + e);
@@ -168,99 +413,164 @@ public class Item implements JSONAware, Comparable<Item> {
 		pass = (String) obj.get("pass");
 		url = (String) obj.get("url");
 		notes = (String) obj.get("notes");
+		dirtyFields = 0;
 		locked = false;
+		used();
+		ring.urlKnown(this, url);
 	}
-	
-	public String getUsername() throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+
+	/**
+	 * Tell the Ring's PlaintextCache, if any, that our plaintext is in use.
+	 */
+	private void used() {
+		PlaintextCache cache = ring.getPlaintextCache();
+		if (null != cache) {
+			cache.used(this);
 		}
-		return username;
 	}
-	public void setUsername(String username) throws GeneralSecurityException, KeyringException {
+
+	/**
+	 * Called by the getters and setters before touching the plaintext.
+	 */
+	private void unlockForUse() throws GeneralSecurityException, KeyringException {
 		if (locked) {
 			unlock();
+		} else {
+			used();
 		}
+	}
+	
+	public synchronized String getUsername() throws GeneralSecurityException, KeyringException {
+		if (locked && hasFieldCrypto()) {
+			return decryptField(USERNAME);
+		}
+		unlockForUse();
+		return username;
+	}
+	public synchronized void setUsername(String username) throws GeneralSecurityException, KeyringException {
+		unlockForUse();
+		changed(USERNAME, this.username, username);
 		this.username = username;
 	}
-	public String getPass() throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+	public synchronized String getPass() throws GeneralSecurityException, KeyringException {
+		if (locked && hasFieldCrypto()) {
+			return decryptField(PASS);
 		}
+		unlockForUse();
 		return pass;
 	}
-	public void setPass(String pass) throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
-		}
+	public synchronized void setPass(String pass) throws GeneralSecurityException, KeyringException {
+		unlockForUse();
+		changed(PASS, this.pass, pass);
 		this.pass = pass;
 	}
-	public String getUrl() throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+	public synchronized String getUrl() throws GeneralSecurityException, KeyringException {
+		if (locked && hasFieldCrypto()) {
+			String url = decryptField(URL);
+			ring.urlKnown(this, url);
+			return url;
 		}
+		unlockForUse();
 		return url;
 	}
-	public void setUrl(String url) throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
-		}
+	public synchronized void setUrl(String url) throws GeneralSecurityException, KeyringException {
+		unlockForUse();
+		changed(URL, this.url, url);
 		this.url = url;
+		ring.urlKnown(this, url);
 	}
-	public String getNotes() throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
+	public synchronized String getNotes() throws GeneralSecurityException, KeyringException {
+		if (locked && hasFieldCrypto()) {
+			return decryptField(NOTES);
 		}
+		unlockForUse();
 		return notes;
 	}
-	public void setNotes(String notes) throws GeneralSecurityException, KeyringException {
-		if (locked) {
-			unlock();
-		}
+	public synchronized void setNotes(String notes) throws GeneralSecurityException, KeyringException {
+		unlockForUse();
+		changed(NOTES, this.notes, notes);
 		this.notes = notes;
 	}
 	public String getTitle() {
 		return title;
 	}
+	public synchronized boolean isLocked() {
+		return locked;
+	}
 	public String getEncryptedData() {
 		return encryptedData;
 	}
-	public void setEncryptedData(String encryptedData) {
+	/**
+	 * Replace the encrypted attributes wholesale.  Any plaintext, and any
+	 * unsaved changes to it, are dropped, and the Item is locked.
+	 */
+	public synchronized void setEncryptedData(String encryptedData) {
 		this.encryptedData = encryptedData;
+		// The per-attribute ciphertexts no longer match
+		encryptedFields = null;
+		fieldsOf = null;
+		if (! locked) {
+			username = pass = url = notes = "";
+			dirtyFields = 0;
+			locked = true;
+			PlaintextCache cache = ring.getPlaintextCache();
+			if (null != cache) {
+				cache.released(this);
+			}
+		}
 	}
 
 	public void setTitle(String title) {
+		String oldTitle = this.title;
 		this.title = title;
+		titleKey = null;
+		if (null != ring && null != oldTitle && ! oldTitle.equals(title)) {
+			ring.itemRetitled(this, oldTitle);
+		}
 	}
 	public long getCreated() {
 		return created;
 	}
 	public void setCreated(long created) {
 		this.created = created;
+		updated();
 	}
 	public long getViewed() {
 		return viewed;
 	}
 	public void setViewed(long viewed) {
 		this.viewed = viewed;
+		updated();
 	}
 	public long getChanged() {
 		return changed;
 	}
 	public void setChanged(long changed) {
 		this.changed = changed;
+		updated();
 	}
 	public int getCategoryId() {
 		return category;
 	}
 	public void setCategoryId(int cat) {
 		this.category = cat;
+		updated();
 	}
 	public String getCategory() {
 		return ring.categoryNameForId(category);
 	}
 	public void setCategory(String categoryName) {
 		this.category = ring.categoryIdForName(categoryName);
+		updated();
+	}
+
+	/**
+	 * Tell the Ring, which indexes Items by category and date.
+	 */
+	private void updated() {
+		if (null != ring) {
+			ring.itemUpdated(this);
+		}
 	}
 
 	/**
@@ -282,9 +592,34 @@ public class Item implements JSONAware, Comparable<Item> {
 		return title;
 	}
 	
+	/**
+	 * @return The CollationKey of the title, computed once and kept until the
+	 * title changes.
+	 */
+	public CollationKey getTitleKey() {
+		CollationKey key = titleKey;
+		String current = title;
+		// A key made from the old title can land just after setTitle()
+		if (null == key || ! key.getSourceString().equals(current)) {
+			key = collate(current);
+			titleKey = key;
+		}
+		return key;
+	}
+
+	static CollationKey collate(String title) {
+		return COLLATOR.getCollationKey(null == title ? "" : title);
+	}
+
+	/**
+	 * By title, in the locale's collation order.  Titles that collate the
+	 * same (e.g. differ only in characters the locale ignores) fall back to
+	 * comparing chars, so that this is consistent with equals().
+	 */
 	@Override
 	public int compareTo(Item other) {
-		return title.compareTo(other.title);
+		int diff = getTitleKey().compareTo(other.getTitleKey());
+		return 0 != diff ? diff : title.compareTo(other.title);
 	}
 	
 	@Override
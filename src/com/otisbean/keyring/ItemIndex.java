@@ -0,0 +1,629 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.text.CollationKey;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Secondary indexes over a Ring's Items: by category, by each of the three
+ * dates, and by the host of the URL, plus sorted views for browsing.
+ *
+ * Category and dates are plaintext, so they're indexed as soon as an Item
+ * is added.  The URL is encrypted, so an Item only shows up in the host
+ * index once it has been unlocked (or its URL read) at least once.  The
+ * hosts live in memory only, and are dropped by clearHosts().
+ *
+ * An Item's indexed values are kept alongside it, so the old entries can
+ * be found and removed after the Item itself has changed; the Item just
+ * has to say so, by way of Ring.itemUpdated().
+ *
+ * Sorted views (see view()) are arrays of Items in title (by collation
+ * key, as Item.compareTo()), category or date order, optionally of a
+ * single category, built the first time they're asked for.  After that, a
+ * change moves the one Item, by bisection and an array copy, rather than
+ * sorting again.  They're live, read-only Lists, so a ListModel or
+ * TableModel can read rows straight out of them.
+ *
+ * Ring calls in holding its own monitor, Items holding theirs, and the
+ * index never calls out (Item.getTitleKey() takes no monitor), so its
+ * monitor is always the innermost.
+ *
+ * @author Dirk Bergstrom
+ */
+class ItemIndex {
+
+	static final int CREATED = 0;
+	static final int CHANGED = 1;
+	static final int VIEWED = 2;
+	private static final int DATES = 3;
+	static final int TITLE = 3;
+	static final int CATEGORY = 4;
+
+	/**
+	 * Category of views that include every Item.
+	 */
+	static final int ALL = -1;
+
+	/**
+	 * A date index entry.  The sequence number breaks ties, so Items with
+	 * the same date don't collide.
+	 */
+	private static class DateKey implements Comparable<DateKey> {
+		final long date;
+		final long seq;
+		final Item item;
+
+		DateKey(long date, long seq, Item item) {
+			this.date = date;
+			this.seq = seq;
+			this.item = item;
+		}
+
+		public int compareTo(DateKey other) {
+			if (date != other.date) {
+				return date < other.date ? -1 : 1;
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+	}
+
+	/**
+	 * What an Item was indexed under.
+	 */
+	private static class Indexed {
+		final Item item;
+		final long seq;
+		int category;
+		final DateKey[] dates = new DateKey[DATES];
+		String host;
+		/**
+		 * Whether host has been set from the Item's URL since it was
+		 * indexed, or the hosts were last cleared.
+		 */
+		boolean hostKnown;
+		String title;
+		/**
+		 * Collation key of title, made the first time a view needs it.
+		 */
+		private CollationKey titleKey;
+
+		Indexed(Item item, long seq) {
+			this.item = item;
+			this.seq = seq;
+		}
+
+		/**
+		 * The Item keeps its key too, use that unless the title has moved on
+		 * since we indexed it.
+		 */
+		CollationKey titleKey() {
+			if (null == titleKey) {
+				CollationKey key = item.getTitleKey();
+				titleKey = key.getSourceString().equals(title) ? key : Item.collate(title);
+			}
+			return titleKey;
+		}
+	}
+
+	/**
+	 * A sorted, live, read-only view of the Items.  Reads take the index's
+	 * monitor, so they're safe from any thread, though a view that's being
+	 * changed under a reader can of course shift between calls.
+	 */
+	private class View extends AbstractList<Item> implements RandomAccess {
+		final int order;
+		final int category;
+		Indexed[] entries;
+		int size;
+
+		/**
+		 * @param all The view of every Item in this order, if there is one,
+		 * which is already sorted, so a category's view just filters it.
+		 */
+		View(int order, int category, View all) {
+			this.order = order;
+			this.category = category;
+			entries = new Indexed[Math.max(16, null == all ? indexed.size() : all.size)];
+			if (null != all) {
+				for (int i = 0; i < all.size; i++) {
+					if (includes(all.entries[i])) {
+						entries[size++] = all.entries[i];
+					}
+				}
+				return;
+			}
+			for (Indexed entry : indexed.values()) {
+				if (includes(entry)) {
+					entries[size++] = entry;
+				}
+			}
+			Arrays.sort(entries, 0, size, new Comparator<Indexed>() {
+				public int compare(Indexed a, Indexed b) {
+					return ItemIndex.compare(View.this.order, a, b);
+				}
+			});
+		}
+
+		boolean includes(Indexed entry) {
+			return ALL == category || entry.category == category;
+		}
+
+		/**
+		 * @return The position of entry, or (-(insertion point) - 1).
+		 */
+		int find(Indexed entry) {
+			int low = 0;
+			int high = size - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int diff = ItemIndex.compare(order, entries[mid], entry);
+				if (diff < 0) {
+					low = mid + 1;
+				} else if (diff > 0) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -(low + 1);
+		}
+
+		void insert(Indexed entry) {
+			int at = -find(entry) - 1;
+			if (size == entries.length) {
+				entries = Arrays.copyOf(entries, size * 2);
+			}
+			System.arraycopy(entries, at, entries, at + 1, size - at);
+			entries[at] = entry;
+			size++;
+		}
+
+		void delete(Indexed entry) {
+			int at = find(entry);
+			if (at >= 0) {
+				System.arraycopy(entries, at + 1, entries, at, size - at - 1);
+				entries[--size] = null;
+			}
+		}
+
+		@Override
+		public Item get(int index) {
+			synchronized (ItemIndex.this) {
+				if (index < 0 || index >= size) {
+					throw new IndexOutOfBoundsException(index + " of " + size);
+				}
+				return entries[index].item;
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (ItemIndex.this) {
+				return size;
+			}
+		}
+
+		/**
+		 * By bisection, so O(log n).
+		 */
+		@Override
+		public int indexOf(Object item) {
+			synchronized (ItemIndex.this) {
+				Indexed entry = indexed.get(item);
+				if (null == entry || ! includes(entry)) {
+					return -1;
+				}
+				int at = find(entry);
+				return at < 0 ? -1 : at;
+			}
+		}
+
+		@Override
+		public int lastIndexOf(Object item) {
+			return indexOf(item);
+		}
+
+		@Override
+		public boolean contains(Object item) {
+			return indexOf(item) >= 0;
+		}
+	}
+
+	private final Map<Item, Indexed> indexed = new IdentityHashMap<Item, Indexed>();
+	private final Map<Integer, Set<Item>> byCategory = new HashMap<Integer, Set<Item>>();
+	private final List<TreeSet<DateKey>> byDate = new ArrayList<TreeSet<DateKey>>();
+	private final Map<String, Set<Item>> byHost = new HashMap<String, Set<Item>>();
+	/**
+	 * Number of Items whose hostKnown is false.
+	 */
+	private int hostsUnknown;
+	/**
+	 * Keyed by order in the high half, category in the low (see viewKey()).
+	 */
+	private final Map<Long, View> views = new HashMap<Long, View>();
+	private long nextSeq;
+
+	ItemIndex() {
+		for (int i = 0; i < DATES; i++) {
+			byDate.add(new TreeSet<DateKey>());
+		}
+	}
+
+	synchronized void add(Item item) {
+		Indexed entry = indexed.get(item);
+		if (null != entry) {
+			reindex(item, entry);
+			return;
+		}
+		entry = new Indexed(item, nextSeq++);
+		indexed.put(item, entry);
+		hostsUnknown++;
+		entry.category = item.getCategoryId();
+		entry.title = titleOf(item);
+		setOf(byCategory, entry.category).add(item);
+		for (int i = 0; i < DATES; i++) {
+			entry.dates[i] = new DateKey(dateOf(item, i), entry.seq, item);
+			byDate.get(i).add(entry.dates[i]);
+		}
+		for (View view : views.values()) {
+			if (view.includes(entry)) {
+				view.insert(entry);
+			}
+		}
+	}
+
+	synchronized void addAll(Collection<Item> items) {
+		for (Item item : items) {
+			add(item);
+		}
+	}
+
+	synchronized void remove(Item item) {
+		Indexed entry = indexed.get(item);
+		if (null == entry) {
+			return;
+		}
+		for (View view : views.values()) {
+			if (view.includes(entry)) {
+				view.delete(entry);
+			}
+		}
+		indexed.remove(item);
+		removeFrom(byCategory, entry.category, item);
+		for (int i = 0; i < DATES; i++) {
+			byDate.get(i).remove(entry.dates[i]);
+		}
+		if (null != entry.host) {
+			removeFrom(byHost, entry.host, item);
+		}
+		if (! entry.hostKnown) {
+			hostsUnknown--;
+		}
+	}
+
+	synchronized void clear() {
+		indexed.clear();
+		byCategory.clear();
+		for (TreeSet<DateKey> dates : byDate) {
+			dates.clear();
+		}
+		byHost.clear();
+		hostsUnknown = 0;
+		views.clear();
+	}
+
+	/**
+	 * Pick up a changed title, category or date.  Items that aren't in the index,
+	 * because they haven't been added to a Ring yet, are ignored.
+	 */
+	synchronized void update(Item item) {
+		Indexed entry = indexed.get(item);
+		if (null != entry) {
+			reindex(item, entry);
+		}
+	}
+
+	private void reindex(Item item, Indexed entry) {
+		int category = item.getCategoryId();
+		String title = titleOf(item);
+		boolean moved = category != entry.category || ! title.equals(entry.title);
+		for (int i = 0; i < DATES; i++) {
+			moved |= dateOf(item, i) != entry.dates[i].date;
+		}
+		if (! moved) {
+			return;
+		}
+		// Out of the views while it still has the values they're sorted by
+		for (View view : views.values()) {
+			if (view.includes(entry)) {
+				view.delete(entry);
+			}
+		}
+		if (! title.equals(entry.title)) {
+			entry.title = title;
+			entry.titleKey = null;
+		}
+		if (category != entry.category) {
+			removeFrom(byCategory, entry.category, item);
+			entry.category = category;
+			setOf(byCategory, category).add(item);
+		}
+		for (int i = 0; i < DATES; i++) {
+			long date = dateOf(item, i);
+			if (date != entry.dates[i].date) {
+				byDate.get(i).remove(entry.dates[i]);
+				entry.dates[i] = new DateKey(date, entry.seq, item);
+				byDate.get(i).add(entry.dates[i]);
+			}
+		}
+		for (View view : views.values()) {
+			if (view.includes(entry)) {
+				view.insert(entry);
+			}
+		}
+	}
+
+	/**
+	 * Record the URL of an Item, which has just been decrypted or set.
+	 */
+	synchronized void urlKnown(Item item, String url) {
+		Indexed entry = indexed.get(item);
+		if (null == entry) {
+			return;
+		}
+		if (! entry.hostKnown) {
+			entry.hostKnown = true;
+			hostsUnknown--;
+		}
+		String host = hostOf(url);
+		if (null == host ? null == entry.host : host.equals(entry.host)) {
+			return;
+		}
+		if (null != entry.host) {
+			removeFrom(byHost, entry.host, item);
+		}
+		entry.host = host;
+		if (null != host) {
+			setOf(byHost, host).add(item);
+		}
+	}
+
+	/**
+	 * Forget all the URL hosts.
+	 */
+	synchronized void clearHosts() {
+		byHost.clear();
+		for (Indexed entry : indexed.values()) {
+			entry.host = null;
+			entry.hostKnown = false;
+		}
+		hostsUnknown = indexed.size();
+	}
+
+	/**
+	 * @return Whether item's host is indexed, or it isn't in the index at
+	 * all.
+	 */
+	synchronized boolean hostKnown(Item item) {
+		Indexed entry = indexed.get(item);
+		return null == entry || entry.hostKnown;
+	}
+
+	/**
+	 * @return Whether every Item's host is indexed, so forUrl() misses
+	 * nothing.
+	 */
+	synchronized boolean hostsComplete() {
+		return 0 == hostsUnknown;
+	}
+
+	synchronized List<Item> inCategory(int category) {
+		Set<Item> items = byCategory.get(category);
+		return null == items ? new ArrayList<Item>() : new ArrayList<Item>(items);
+	}
+
+	/**
+	 * @param field CREATED, CHANGED or VIEWED.
+	 * @param max Most Items to return, 0 for all of them.
+	 * @return Items, most recent first.
+	 */
+	synchronized List<Item> byDate(int field, int max) {
+		List<Item> result = new ArrayList<Item>();
+		Iterator<DateKey> keys = byDate.get(field).descendingIterator();
+		while (keys.hasNext() && (max <= 0 || result.size() < max)) {
+			result.add(keys.next().item);
+		}
+		return result;
+	}
+
+	/**
+	 * @param since Oldest date wanted, in epoch millis.
+	 * @return Items dated since then, most recent first.
+	 */
+	synchronized List<Item> since(int field, long since) {
+		List<Item> result = new ArrayList<Item>();
+		for (DateKey key : byDate.get(field).tailSet(
+				new DateKey(since, Long.MIN_VALUE, null), true).descendingSet()) {
+			result.add(key.item);
+		}
+		return result;
+	}
+
+	/**
+	 * Find the Items for a site.  If nothing is filed under the host itself,
+	 * try its parent domains, so "login.example.com" finds "example.com",
+	 * stopping short of the top level domain.
+	 */
+	synchronized List<Item> forUrl(String url) {
+		String host = hostOf(url);
+		while (null != host) {
+			Set<Item> items = byHost.get(host);
+			if (null != items) {
+				return new ArrayList<Item>(items);
+			}
+			int dot = host.indexOf('.');
+			if (dot < 0 || host.indexOf('.', dot + 1) < 0) {
+				break;
+			}
+			host = host.substring(dot + 1);
+		}
+		return new ArrayList<Item>();
+	}
+
+	/**
+	 * @param order TITLE, CATEGORY, CREATED, CHANGED or VIEWED.
+	 * @param category A category id, or ALL.
+	 * @return A live, read-only view of the Items in the category, in
+	 * ascending order.
+	 */
+	synchronized List<Item> view(int order, int category) {
+		View view = views.get(viewKey(order, category));
+		if (null == view) {
+			View all = ALL == category ? null : views.get(viewKey(order, ALL));
+			view = new View(order, category, all);
+			views.put(viewKey(order, category), view);
+		}
+		return view;
+	}
+
+	private static Long viewKey(int order, int category) {
+		return ((long) order << 32) | (category & 0xffffffffL);
+	}
+
+	/**
+	 * Equal keys are ordered by when the Items were indexed, so no two
+	 * entries are ever equal.
+	 */
+	private static int compare(int order, Indexed a, Indexed b) {
+		int diff;
+		switch (order) {
+		case TITLE:
+			diff = compareTitles(a, b);
+			break;
+		case CATEGORY:
+			diff = a.category < b.category ? -1 : (a.category == b.category ? 0 : 1);
+			if (0 == diff) {
+				diff = compareTitles(a, b);
+			}
+			break;
+		default:
+			diff = Long.compare(a.dates[order].date, b.dates[order].date);
+		}
+		return 0 != diff ? diff : Long.compare(a.seq, b.seq);
+	}
+
+	/**
+	 * As Item.compareTo(), but on the indexed titles.
+	 */
+	private static int compareTitles(Indexed a, Indexed b) {
+		int diff = a.titleKey().compareTo(b.titleKey());
+		return 0 != diff ? diff : a.title.compareTo(b.title);
+	}
+
+	private static String titleOf(Item item) {
+		String title = item.getTitle();
+		return null == title ? "" : title;
+	}
+
+	/**
+	 * Pull the host out of whatever people type into the URL field: with or
+	 * without a scheme, user info, port or path.  Lower cased, without a
+	 * leading "www.".
+	 *
+	 * @return The host, or null if there isn't one.
+	 */
+	static String hostOf(String url) {
+		if (null == url) {
+			return null;
+		}
+		String host = url.trim().toLowerCase(Locale.ENGLISH);
+		int scheme = host.indexOf("://");
+		if (scheme >= 0) {
+			host = host.substring(scheme + 3);
+		}
+		for (int i = 0; i < host.length(); i++) {
+			char c = host.charAt(i);
+			if (c == '/' || c == '?' || c == '#' || Character.isWhitespace(c)) {
+				host = host.substring(0, i);
+				break;
+			}
+		}
+		host = host.substring(host.lastIndexOf('@') + 1);
+		if (host.startsWith("[")) {
+			// IPv6 literal
+			int close = host.indexOf(']');
+			host = close < 0 ? host : host.substring(0, close + 1);
+		} else if (host.indexOf(':') >= 0) {
+			host = host.substring(0, host.indexOf(':'));
+		}
+		if (host.endsWith(".")) {
+			host = host.substring(0, host.length() - 1);
+		}
+		if (host.startsWith("www.")) {
+			host = host.substring(4);
+		}
+		return host.length() == 0 ? null : host;
+	}
+
+	private static long dateOf(Item item, int field) {
+		switch (field) {
+		case CREATED:
+			return item.getCreated();
+		case CHANGED:
+			return item.getChanged();
+		default:
+			return item.getViewed();
+		}
+	}
+
+	private static <K> Set<Item> setOf(Map<K, Set<Item>> index, K key) {
+		Set<Item> items = index.get(key);
+		if (null == items) {
+			items = Collections.newSetFromMap(new IdentityHashMap<Item, Boolean>());
+			index.put(key, items);
+		}
+		return items;
+	}
+
+	private static <K> void removeFrom(Map<K, Set<Item>> index, K key, Item item) {
+		Set<Item> items = index.get(key);
+		if (null != items) {
+			items.remove(item);
+			if (items.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+}
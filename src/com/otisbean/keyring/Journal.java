@@ -0,0 +1,227 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Append-only log of item changes, kept next to a Keyring backup file as
+ * "<file>.journal", so that a single edit doesn't have to rewrite the
+ * whole backup.
+ *
+ * The first line is a plaintext header, {"journal": 1, "base": "..."},
+ * where base is the fingerprint of the backup file the journal applies to
+ * (see Ring.save()).  If the backup has been replaced since, by the phone
+ * or another copy of this program, the journal is stale.  Every other line
+ * is one change record, encrypted with the Ring's key like an item, and
+ * Base64 encoded.  The records themselves are built and applied by Ring.
+ *
+ * Each append is forced to disk before returning.  A crash can only leave
+ * a partial last line, which read() drops.
+ *
+ * @author Dirk Bergstrom
+ */
+class Journal {
+
+	private static final Logger LOG = Logger.getLogger(Journal.class.getName());
+
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Ring ring;
+	private final File file;
+	private int records;
+
+	Journal(Ring ring, String dbFile) {
+		this.ring = ring;
+		this.file = new File(dbFile + ".journal");
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * @return Number of records in the journal.
+	 */
+	int getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Start a new, empty journal for the backup with the given fingerprint,
+	 * replacing any existing one.
+	 */
+	@SuppressWarnings("unchecked")
+	void create(String base) throws IOException {
+		JSONObject header = new JSONObject();
+		header.put("journal", VERSION);
+		header.put("base", base);
+		write(header.toJSONString(), false);
+		records = 0;
+	}
+
+	/**
+	 * Encrypt records and append them, with a single write and sync.
+	 */
+	void append(List<JSONObject> batch) throws IOException, GeneralSecurityException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		StringBuilder lines = new StringBuilder();
+		for (JSONObject record : batch) {
+			if (lines.length() > 0) {
+				lines.append('\n');
+			}
+			lines.append(ring.encrypt(record.toJSONString(), Ring.ITEM_SALT_LENGTH));
+		}
+		write(lines.toString(), true);
+		records += batch.size();
+	}
+
+	private void write(String line, boolean append) throws IOException {
+		FileOutputStream os = new FileOutputStream(file, append);
+		try {
+			os.write((line + "\n").getBytes(UTF8));
+			os.getChannel().force(false);
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Read and decrypt the records.
+	 *
+	 * A record that doesn't decrypt to JSON can only be the torn end of an
+	 * interrupted append.  It, and anything after it, is cut off the file,
+	 * so the next append starts on a clean line.
+	 *
+	 * @param base Fingerprint of the backup the Ring was loaded from.
+	 * @return The records, oldest first, or null if the journal was written
+	 * against a different backup.
+	 */
+	List<JSONObject> read(String base)
+			throws IOException, GeneralSecurityException, KeyringException {
+		List<JSONObject> result = new ArrayList<JSONObject>();
+		long goodLength = 0;
+		boolean torn = false;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), UTF8));
+		try {
+			String line = reader.readLine();
+			JSONObject header;
+			try {
+				header = (JSONObject) ring.getParser().parse(null == line ? "" : line);
+			} catch (ParseException e) {
+				throw new KeyringException("Unparseable journal header in " + file + ": " + e);
+			} catch (ClassCastException e) {
+				throw new KeyringException("Not a Keyring journal: " + file);
+			}
+			if (null == header || ! Long.valueOf(VERSION).equals(header.get("journal"))) {
+				throw new KeyringException("Not a Keyring journal: " + file);
+			}
+			if (! base.equals(header.get("base"))) {
+				return null;
+			}
+			// Base64 and JSON headers are pure ASCII, so chars == bytes
+			goodLength = line.length() + 1;
+			while (null != (line = reader.readLine())) {
+				JSONObject record;
+				try {
+					record = (JSONObject) ring.getParser().parse(ring.decrypt(line));
+				} catch (ParseException e) {
+					torn = true;
+					break;
+				} catch (GeneralSecurityException e) {
+					torn = true;
+					break;
+				} catch (ClassCastException e) {
+					torn = true;
+					break;
+				}
+				result.add(record);
+				goodLength += line.length() + 1;
+			}
+		} finally {
+			reader.close();
+		}
+		if (goodLength == file.length() + 1) {
+			// Complete last record, only its newline got lost
+			write("", true);
+		} else if (torn || goodLength < file.length()) {
+			LOG.warning("Dropping the incomplete end of " + file);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(goodLength);
+				raf.getChannel().force(false);
+			} finally {
+				raf.close();
+			}
+		}
+		records = result.size();
+		return result;
+	}
+
+	/**
+	 * Move a journal that doesn't match its backup out of the way, rather
+	 * than throw away somebody's edits.  It goes to "<journal>.stale", or
+	 * "<journal>.stale.N" for the first N not taken, so an earlier one
+	 * that was set aside is never overwritten.
+	 *
+	 * @return Where the journal went.
+	 */
+	File setAside() throws IOException {
+		File stale = new File(file.getPath() + ".stale");
+		for (int n = 1; stale.exists(); n++) {
+			stale = new File(file.getPath() + ".stale." + n);
+		}
+		if (! file.renameTo(stale)) {
+			throw new IOException("Couldn't rename " + file + " to " + stale);
+		}
+		LOG.warning("Journal " + file + " doesn't match its backup, moved to " + stale);
+		records = 0;
+		return stale;
+	}
+
+	void delete() throws IOException {
+		if (file.exists() && ! file.delete()) {
+			throw new IOException("Couldn't delete " + file);
+		}
+		records = 0;
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads the outer layer of a Keyring backup straight out of a ByteBuffer,
+ * normally a memory-mapped local file, and feeds it to a ContentHandler
+ * the same way JSONParser would.
+ *
+ * The outer layer is a flat object of ASCII keys, numbers and Base64
+ * strings, so there's no need to decode UTF-8 a char at a time.  The db
+ * string, which is nearly all of the file, is copied out of the buffer in
+ * one go, and only unescaped (the phone writes "/" as "\/") if it has to be.
+ *
+ * Anything else, a nested value or a non-ASCII byte, and read() gives up,
+ * so the caller can fall back to the real parser, which also produces the
+ * error message for a broken file.
+ *
+ * @author Dirk Bergstrom
+ */
+class MappedBackupReader {
+
+	/**
+	 * Maps bytes to chars one to one, which is all ASCII needs.
+	 */
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Thrown to give up on the buffer.  Never escapes read().
+	 */
+	private static class NotFlat extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		NotFlat() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final NotFlat NOT_FLAT = new NotFlat();
+
+	private final ByteBuffer buf;
+	private final int limit;
+	private int pos;
+
+	private MappedBackupReader(ByteBuffer buf) {
+		this.buf = buf;
+		this.pos = buf.position();
+		this.limit = buf.limit();
+	}
+
+	/**
+	 * Parse buf, from its position to its limit, into handler.
+	 *
+	 * @return false if buf isn't a flat, ASCII JSON object, in which case
+	 * handler may have seen part of it, and should be thrown away.
+	 */
+	static boolean read(ByteBuffer buf, ContentHandler handler)
+			throws IOException, ParseException {
+		try {
+			new MappedBackupReader(buf).parse(handler);
+			return true;
+		} catch (NotFlat e) {
+			return false;
+		}
+	}
+
+	private void parse(ContentHandler handler)
+			throws NotFlat, IOException, ParseException {
+		expect('{');
+		handler.startJSON();
+		handler.startObject();
+		if (peek() == '}') {
+			pos++;
+		} else {
+			while (true) {
+				String key = string();
+				expect(':');
+				handler.startObjectEntry(key);
+				handler.primitive(value());
+				handler.endObjectEntry();
+				if (peek() == ',') {
+					pos++;
+				} else {
+					expect('}');
+					break;
+				}
+			}
+		}
+		handler.endObject();
+		handler.endJSON();
+		if (peek() != -1) {
+			throw NOT_FLAT;
+		}
+	}
+
+	/**
+	 * @return The next non-whitespace byte, without consuming it, or -1 at
+	 * the end of the buffer.
+	 */
+	private int peek() {
+		while (pos < limit) {
+			byte b = buf.get(pos);
+			if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+				return b;
+			}
+			pos++;
+		}
+		return -1;
+	}
+
+	private void expect(char c) throws NotFlat {
+		if (peek() != c) {
+			throw NOT_FLAT;
+		}
+		pos++;
+	}
+
+	private Object value() throws NotFlat {
+		int c = peek();
+		if (c == '"') {
+			return string();
+		} else if (c == '-' || (c >= '0' && c <= '9')) {
+			return number();
+		} else if (literal("true")) {
+			return Boolean.TRUE;
+		} else if (literal("false")) {
+			return Boolean.FALSE;
+		} else if (literal("null")) {
+			return null;
+		}
+		// Objects, arrays and garbage
+		throw NOT_FLAT;
+	}
+
+	private boolean literal(String word) {
+		if (limit - pos < word.length()) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			if (buf.get(pos + i) != word.charAt(i)) {
+				return false;
+			}
+		}
+		pos += word.length();
+		return true;
+	}
+
+	/**
+	 * Numbers come out as Long or Double, like JSONParser's.
+	 */
+	private Object number() throws NotFlat {
+		int start = pos;
+		boolean integral = true;
+		while (pos < limit) {
+			byte b = buf.get(pos);
+			if (b == '.' || b == 'e' || b == 'E') {
+				integral = false;
+			} else if (b != '-' && b != '+' && (b < '0' || b > '9')) {
+				break;
+			}
+			pos++;
+		}
+		String text = new String(bytes(start, pos - start), LATIN1);
+		try {
+			return integral ? (Object) Long.valueOf(text) : (Object) Double.valueOf(text);
+		} catch (NumberFormatException e) {
+			throw NOT_FLAT;
+		}
+	}
+
+	private String string() throws NotFlat {
+		expect('"');
+		int start = pos;
+		boolean escaped = false;
+		while (true) {
+			if (pos >= limit) {
+				throw NOT_FLAT;
+			}
+			byte b = buf.get(pos);
+			if (b == '"') {
+				break;
+			} else if (b == '\\') {
+				escaped = true;
+				pos++;
+			} else if (b < 0) {
+				// Not ASCII
+				throw NOT_FLAT;
+			}
+			pos++;
+		}
+		int end = pos++;
+		byte[] raw = bytes(start, end - start);
+		if (! escaped) {
+			return new String(raw, LATIN1);
+		}
+		// Unescape in place, the result can only be shorter
+		int out = 0;
+		for (int i = 0; i < raw.length; i++) {
+			byte b = raw[i];
+			if (b == '\\') {
+				b = raw[++i];
+				switch (b) {
+				case '"': case '\\': case '/':
+					break;
+				case 'b': b = '\b'; break;
+				case 'f': b = '\f'; break;
+				case 'n': b = '\n'; break;
+				case 'r': b = '\r'; break;
+				case 't': b = '\t'; break;
+				case 'u':
+					if (i + 4 >= raw.length) {
+						throw NOT_FLAT;
+					}
+					int code;
+					try {
+						code = Integer.parseInt(new String(raw, i + 1, 4, LATIN1), 16);
+					} catch (NumberFormatException e) {
+						throw NOT_FLAT;
+					}
+					if (code > 0x7f) {
+						throw NOT_FLAT;
+					}
+					b = (byte) code;
+					i += 4;
+					break;
+				default:
+					throw NOT_FLAT;
+				}
+			}
+			raw[out++] = b;
+		}
+		return new String(raw, 0, out, LATIN1);
+	}
+
+	private byte[] bytes(int start, int length) {
+		byte[] result = new byte[length];
+		ByteBuffer slice = buf.duplicate();
+		slice.position(start);
+		slice.get(result);
+		return result;
+	}
+}
@@ -0,0 +1,275 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of a Ring's unlocked Items, and re-locks them when there are
+ * too many, or they haven't been used for a while.
+ *
+ * The Items are kept in a doubly linked list, least recently used first.
+ * Each Item points at its own list entry, so a use is O(1) and doesn't
+ * depend on the Item's title, which can change while it's unlocked.
+ *
+ * Items call used() and released() while holding their own monitor, so the
+ * cache never takes an Item's monitor while holding its own.  Evicted Items
+ * are handed to a daemon thread, which re-locks them one at a time, and
+ * only ever holds one Item's monitor.  That
+ * same thread runs the idle sweep, which is only scheduled while the cache
+ * has something in it, for the time the eldest entry goes stale.
+ *
+ * @author Dirk Bergstrom
+ */
+class PlaintextCache {
+
+	private static final Logger LOG = Logger.getLogger(PlaintextCache.class.getName());
+
+	/**
+	 * A list node.  Guarded by the cache's monitor, like the list itself.
+	 */
+	static class Entry {
+		private final Item item;
+		private Entry prev;
+		private Entry next;
+		private long lastUsed;
+
+		Entry(Item item) {
+			this.item = item;
+		}
+	}
+
+	private final int maxItems;
+	private final long idleNanos;
+	private final ScheduledExecutorService relocker;
+
+	// Least recently used
+	private Entry head;
+	// Most recently used
+	private Entry tail;
+	private int size;
+	private ScheduledFuture<?> sweep;
+	private boolean closed;
+
+	/**
+	 * @param maxItems Most Items kept unlocked, 0 for no limit.
+	 * @param idleMillis Time after its last use that an Item is re-locked,
+	 * 0 to keep them until evicted by size.
+	 */
+	PlaintextCache(int maxItems, long idleMillis) {
+		this.maxItems = maxItems;
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+		relocker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Keyring plaintext cache");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Record a use of an unlocked Item, making it the most recently used, and
+	 * evict the least recently used Items if that puts us over the limit.
+	 */
+	void used(Item item) {
+		List<Item> evicted = null;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			Entry entry = item.cacheEntry;
+			if (null == entry) {
+				entry = new Entry(item);
+				item.cacheEntry = entry;
+				size++;
+			} else {
+				unlink(entry);
+			}
+			entry.lastUsed = System.nanoTime();
+			append(entry);
+			while (maxItems > 0 && size > maxItems) {
+				if (null == evicted) {
+					evicted = new ArrayList<Item>();
+				}
+				evicted.add(remove(head));
+			}
+			// Queued under our monitor, so shutdown() can't get in between
+			if (null != evicted) {
+				relock(evicted);
+			}
+			if (idleNanos > 0 && null == sweep) {
+				scheduleSweep();
+			}
+		}
+	}
+
+	/**
+	 * Forget an Item that has been locked.
+	 */
+	synchronized void released(Item item) {
+		if (null != item.cacheEntry) {
+			remove(item.cacheEntry);
+		}
+	}
+
+	/**
+	 * @return Number of Items currently unlocked through the cache.
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Re-lock everything in the cache, on the calling thread.
+	 */
+	void clear() {
+		List<Item> all = new ArrayList<Item>();
+		synchronized (this) {
+			while (null != head) {
+				all.add(remove(head));
+			}
+		}
+		for (Item item : all) {
+			relockNow(item);
+		}
+	}
+
+	/**
+	 * Re-lock everything, and stop the re-locking thread once it has worked
+	 * through the evictions already queued.
+	 */
+	void shutdown() {
+		synchronized (this) {
+			closed = true;
+			if (null != sweep) {
+				sweep.cancel(false);
+			}
+			// Evictions already queued still run
+			relocker.shutdown();
+		}
+		clear();
+		try {
+			relocker.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void append(Entry entry) {
+		entry.prev = tail;
+		entry.next = null;
+		if (null == tail) {
+			head = entry;
+		} else {
+			tail.next = entry;
+		}
+		tail = entry;
+	}
+
+	private void unlink(Entry entry) {
+		if (null == entry.prev) {
+			head = entry.next;
+		} else {
+			entry.prev.next = entry.next;
+		}
+		if (null == entry.next) {
+			tail = entry.prev;
+		} else {
+			entry.next.prev = entry.prev;
+		}
+		entry.prev = entry.next = null;
+	}
+
+	private Item remove(Entry entry) {
+		unlink(entry);
+		entry.item.cacheEntry = null;
+		size--;
+		return entry.item;
+	}
+
+	/**
+	 * Schedule a sweep for when the eldest entry goes stale.
+	 */
+	private void scheduleSweep() {
+		long delay = head.lastUsed + idleNanos - System.nanoTime();
+		sweep = relocker.schedule(new Runnable() {
+			public void run() {
+				sweepIdle();
+			}
+		}, Math.max(0, delay), TimeUnit.NANOSECONDS);
+	}
+
+	private void sweepIdle() {
+		List<Item> idle = new ArrayList<Item>();
+		synchronized (this) {
+			sweep = null;
+			long now = System.nanoTime();
+			while (null != head && now - head.lastUsed >= idleNanos) {
+				idle.add(remove(head));
+			}
+			if (null != head && ! closed) {
+				scheduleSweep();
+			}
+		}
+		for (Item item : idle) {
+			relockNow(item);
+		}
+	}
+
+	private void relock(final List<Item> items) {
+		relocker.execute(new Runnable() {
+			public void run() {
+				for (Item item : items) {
+					relockNow(item);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Lock an evicted Item, unless it's been used (and so re-entered the
+	 * cache) since.
+	 */
+	private void relockNow(Item item) {
+		synchronized (item) {
+			if (item.isLocked() || isCached(item)) {
+				return;
+			}
+			try {
+				item.lock();
+			} catch (Exception e) {
+				LOG.log(Level.WARNING, "Couldn't re-lock " + item.getTitle(), e);
+			}
+		}
+	}
+
+	private synchronized boolean isCached(Item item) {
+		return null != item.cacheEntry;
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Counts the bytes read through it, reports them every STEP bytes, and
+ * gives up with an InterruptedIOException if the reading thread has been
+ * interrupted, which is how a load is cancelled.
+ *
+ * @author Dirk Bergstrom
+ */
+abstract class ProgressInputStream extends FilterInputStream {
+
+	/**
+	 * Bytes between reports.
+	 */
+	static final int STEP = 64 * 1024;
+
+	private long count;
+	private long reported;
+
+	ProgressInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * @return in, reporting to listener as bytes read against total, or in
+	 * itself if listener is null.
+	 */
+	static InputStream wrap(InputStream in, final long total,
+			final Ring.LoadListener listener) {
+		if (null == listener) {
+			return in;
+		}
+		return new ProgressInputStream(in) {
+			void progress(long bytes) {
+				listener.read(bytes, total);
+			}
+		};
+	}
+
+	/**
+	 * Called on the reading thread.
+	 *
+	 * @param bytes Bytes read so far.
+	 */
+	abstract void progress(long bytes);
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0) {
+			counted(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n > 0) {
+			counted(n);
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		counted(skipped);
+		return skipped;
+	}
+
+	private void counted(long n) throws IOException {
+		count += n;
+		if (count - reported >= STEP) {
+			reported = count;
+			checkInterrupted();
+			progress(count);
+		}
+	}
+
+	/**
+	 * @throws InterruptedIOException If the current thread was interrupted,
+	 * clearing the interrupt.
+	 */
+	static void checkInterrupted() throws InterruptedIOException {
+		if (Thread.interrupted()) {
+			throw new InterruptedIOException("Cancelled");
+		}
+	}
+}
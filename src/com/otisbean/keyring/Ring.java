@@ -19,42 +19,79 @@
  */
 package com.otisbean.keyring;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import net.iharder.Base64;
-
+import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -97,22 +134,123 @@ public class Ring {
 
 	public static final int DB_SALT_LENGTH = 16;
 	public static final int ITEM_SALT_LENGTH = 4;
+
+	/**
+	 * Longest String, in chars, that encrypt() and decrypt() run through the
+	 * thread's CipherEngine buffers.  Anything longer, like the whole
+	 * database, gets buffers of its own, so the engine's don't grow to the
+	 * size of the database and keep it for the life of the thread.
+	 */
+	private static final int MAX_ENGINE_STRING = 64 * 1024;
+
+	private static final Logger LOG = Logger.getLogger(Ring.class.getName());
+
+	/**
+	 * Smallest number of items handed to a worker by unlockAll/lockAll
+	 * and buildSearchIndex.
+	 */
+	private static final int MIN_BATCH_SIZE = 64;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CIPHER_TRANSFORMATION = "Blowfish/CFB64/NoPadding";
+	private static final IvParameterSpec IV =
+		new IvParameterSpec(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 });
+	/**
+	 * Overwrites the real key in a CipherEngine.
+	 */
+	private static final SecretKeySpec WIPE_KEY = new SecretKeySpec(new byte[16], "Blowfish");
+	private static final String LOCKED = "The Ring is locked, its password has to be checked again";
 	
 	private String salt;
 	private String checkData;
-	private SecretKeySpec key;
-	private IvParameterSpec iv;
+	/**
+	 * Replaced (never mutated) whenever the password changes, the per-thread
+	 * CipherEngines notice the new instance and re-key themselves.
+	 */
+	private volatile SecretKeySpec key;
+	/**
+	 * SHA-256(salt + password) for the password that produced key, once
+	 * it's been verified.  See validatePassword().
+	 */
+	private byte[] keyHash;
 	private int schemaVersion;
-	private Cipher cipher;
-	private Map<Integer, String> categoriesById = new HashMap<Integer, String>();
+	private final ThreadLocal<CipherEngine> cipherEngines = new ThreadLocal<CipherEngine>();
+	/**
+	 * Every thread's CipherEngine, so clearKeyCache() can wipe them.  Weak, so
+	 * dead threads' engines can go.
+	 */
+	private final Set<CipherEngine> allEngines = Collections.synchronizedSet(
+			Collections.newSetFromMap(new WeakHashMap<CipherEngine, Boolean>()));
+	private final ThreadLocal<JSONParser> parsers = new ThreadLocal<JSONParser>();
+	private final LongAdder encryptCount = new LongAdder();
+	private final LongAdder decryptCount = new LongAdder();
+	private Map<Integer, String> categoriesById = new ConcurrentHashMap<Integer, String>();
 	private SortedMap<String, Integer> categoriesByName = new TreeMap<String, Integer>();
-	private Map<String, Item> db = new HashMap<String, Item>();
+	/**
+	 * Concurrent, so that a background save can run while the GUI edits.
+	 */
+	private Map<String, Item> db = new ConcurrentHashMap<String, Item>();
+	/**
+	 * Secondary indexes over db, kept in step by dbPut() and dbRemove().
+	 */
+	private final ItemIndex index = new ItemIndex();
+	/**
+	 * Full text index, built by the first search, dropped with the key.
+	 */
+	private volatile SearchIndex search;
+	/**
+	 * Held while building the search index, so there's only ever one build.
+	 */
+	private final Object searchLock = new Object();
+	/**
+	 * Held while filling in the hosts of the URL index.
+	 */
+	private final Object hostLock = new Object();
 	private int nextCategory = 1;
 	private Random rnd;
-	JSONParser parser;
 
 	private boolean fullyLoaded;
 
+	private volatile boolean fieldCrypto;
+
+	private volatile PlaintextCache plaintextCache;
+
+	/**
+	 * A journal with this many records is folded into its backup file.
+	 */
+	public static final int JOURNAL_COMPACT_RECORDS = 1000;
+
+	private boolean journaling;
+	/**
+	 * The local file this Ring was last loaded from or saved to, and the
+	 * SHA-256 of its contents, which ties a journal to it.
+	 */
+	private String baseFile;
+	private String baseFingerprint;
+	private Journal journal;
+	/**
+	 * Where the last journal that had to be set aside went, until
+	 * takeSetAsideJournal() hands it to the user.
+	 */
+	private volatile File setAsideJournal;
+	/**
+	 * Items renamed since the last full save, and the title they were
+	 * saved under.
+	 */
+	private final Map<Item, String> retitled = new IdentityHashMap<Item, String>();
+
+	private volatile boolean atomicSave = true;
+	private volatile boolean mappedLoad = true;
+	private volatile boolean gzipUploads;
+	/**
+	 * Windows won't let a file be replaced while a mapping of it is still
+	 * around, and there's no way to drop a mapping short of a GC, which
+	 * would break the next atomic save.
+	 */
+	private static final boolean CAN_MAP =
+		! System.getProperty("os.name", "").startsWith("Windows");
+	private volatile int backupCount;
+
 	private String cryptedDb;
 
 	private JSONObject prefs;
@@ -139,15 +277,186 @@ public class Ring {
 		this.schemaVersion = SCHEMA_VERSION;
 		this.rnd = new Random();
 		salt = saltString(12, null);
-		cipher = Cipher.getInstance("Blowfish/CFB64/NoPadding");
-		// TODO we don't need the parser if we're just doing format conversion
+		// Fail early if the JCE can't give us Blowfish
+		threadEngine();
 		setDefaultCategories();
-		parser = new JSONParser();
+	}
+
+	/**
+	 * A thread's private pair of Blowfish ciphers.
+	 * 
+	 * Cipher objects aren't thread-safe, and Blowfish has a notoriously
+	 * expensive key schedule, so each thread gets its own encrypt and decrypt
+	 * instances, and only re-initializes them when the Ring's key changes.
+	 * doFinal() resets a Cipher to the state it was in right after init(),
+	 * so an initialized Cipher can be reused as-is for the next call.
+	 * 
+	 * The engine also owns the thread's scratch buffers for the String
+	 * wrappers around the ByteBuffer crypto methods.
+	 * 
+	 * Only its own thread uses an engine, except for wipe(), hence the
+	 * (uncontended) locking on rekey(), run() and wipe().
+	 */
+	private static class CipherEngine {
+		private final Cipher encryptor;
+		private final Cipher decryptor;
+		private SecretKeySpec key;
+		private final CharsetEncoder utf8Encoder = UTF8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final Base64Codec base64 = new Base64Codec();
+		private ByteBuffer plainBuffer;
+		private ByteBuffer cryptBuffer;
+
+		CipherEngine() throws GeneralSecurityException {
+			encryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+			decryptor = Cipher.getInstance(CIPHER_TRANSFORMATION);
+		}
+
+		/**
+		 * UTF-8 encode data into the reusable plaintext buffer.
+		 * 
+		 * @return plainBuffer, flipped for reading.
+		 */
+		ByteBuffer encode(String data) {
+			plainBuffer = ensureCapacity(plainBuffer,
+					(int) (data.length() * utf8Encoder.maxBytesPerChar()));
+			utf8Encoder.reset();
+			utf8Encoder.encode(CharBuffer.wrap(data), plainBuffer, true);
+			utf8Encoder.flush(plainBuffer);
+			plainBuffer.flip();
+			return plainBuffer;
+		}
+
+		/**
+		 * Zero what the last encode() put in plainBuffer, so a thread's last
+		 * plaintext doesn't outlive the call, on pool threads especially.
+		 */
+		void clearPlain() {
+			Arrays.fill(plainBuffer.array(), 0, plainBuffer.limit(), (byte) 0);
+		}
+
+		synchronized void rekey(SecretKeySpec newKey) throws GeneralSecurityException {
+			if (newKey == key) {
+				return;
+			}
+			// Forget the old key first, in case init() fails part way through
+			key = null;
+			initBlowfish(encryptor, Cipher.ENCRYPT_MODE, newKey);
+			initBlowfish(decryptor, Cipher.DECRYPT_MODE, newKey);
+			key = newKey;
+		}
+
+		/**
+		 * Run salt followed by the remainder of input through cipher, into out.
+		 * CFB64 is a stream mode, so the output is exactly as long as the input.
+		 */
+		synchronized void run(Cipher cipher, byte[] salt, ByteBuffer input,
+				ByteBuffer out) throws GeneralSecurityException {
+			if (null == key) {
+				// Wiped since getCipherEngine()
+				throw new GeneralSecurityException(LOCKED);
+			}
+			try {
+				if (null != salt) {
+					cipher.update(ByteBuffer.wrap(salt), out);
+				}
+				cipher.doFinal(input, out);
+			}
+			catch (GeneralSecurityException e) {
+				// The cipher is in an unknown state, re-init on next use
+				key = null;
+				throw e;
+			}
+		}
+
+		/**
+		 * Overwrite the ciphers' key schedules with a dummy key, and forget the
+		 * Ring's key, so it has to be rekeyed before it can be used again.
+		 */
+		synchronized void wipe() {
+			key = null;
+			try {
+				initBlowfish(encryptor, Cipher.ENCRYPT_MODE, WIPE_KEY);
+				initBlowfish(decryptor, Cipher.DECRYPT_MODE, WIPE_KEY);
+			} catch (GeneralSecurityException e) {
+				// Worked with the real key, so can't happen
+				LOG.log(Level.WARNING, "Couldn't wipe a cipher", e);
+			}
+		}
+	}
+
+	/**
+	 * @return buf, cleared, if it can hold size bytes, otherwise a new buffer.
+	 */
+	private static ByteBuffer ensureCapacity(ByteBuffer buf, int size) {
+		if (null == buf || buf.capacity() < size) {
+			int capacity = null == buf ? size : Math.max(size, buf.capacity() * 2);
+			return ByteBuffer.allocate(capacity);
+		}
+		buf.clear();
+		return buf;
+	}
+
+	private static void initBlowfish(Cipher cipher, int mode, SecretKeySpec key)
+			throws GeneralSecurityException {
+		try {
+			cipher.init(mode, key, IV);
+		}
+		catch (InvalidKeyException ike) {
+			throw new GeneralSecurityException("InvalidKeyException: " +
+					ike.getLocalizedMessage() + "\nYou (probably) need to " +
+					"install the \"Java Cryptography Extension (JCE) " +
+					"Unlimited Strength Jurisdiction Policy\" files.  Go to " +
+					"http://java.sun.com/javase/downloads/index.jsp, download them, " +
+			"and follow the instructions.");
+		}
+	}
+
+	/**
+	 * @return This thread's CipherEngine, keyed with the current password.
+	 */
+	private CipherEngine getCipherEngine() throws GeneralSecurityException {
+		SecretKeySpec current = key;
+		if (null == current) {
+			throw new GeneralSecurityException(LOCKED);
+		}
+		CipherEngine engine = threadEngine();
+		engine.rekey(current);
+		return engine;
+	}
+
+	/**
+	 * @return This thread's CipherEngine, however it's keyed.
+	 */
+	private CipherEngine threadEngine() throws GeneralSecurityException {
+		CipherEngine engine = cipherEngines.get();
+		if (null == engine) {
+			engine = new CipherEngine();
+			cipherEngines.set(engine);
+			allEngines.add(engine);
+		}
+		return engine;
+	}
+
+	/**
+	 * JSONParser keeps parse state in the instance, so each thread gets its own.
+	 */
+	JSONParser getParser() {
+		JSONParser parser = parsers.get();
+		if (null == parser) {
+			parser = new JSONParser();
+			parsers.set(parser);
+		}
+		return parser;
 	}
 	
 	/**
 	 * Initialize the cipher object and create the key object.
 	 * 
+	 * Only used for a new Ring, where the password is right by definition,
+	 * so it goes straight into the key cache.
+	 * 
 	 * @param password
 	 * @return A checkData string, which can be compared against the existing
 	 * one to determine if the password is valid.
@@ -156,59 +465,178 @@ public class Ring {
 	private String initCipher(char[] password)
 			throws GeneralSecurityException {
 		log("initCipher()");
-		String base64Key = null;
+		byte[] hash = hashPassword(password);
+		String rawCheckData = setKey(hash);
+		keyHash = hash;
+		return rawCheckData;
+	}
+
+	/**
+	 * The following code looks like a lot of monkey-motion, but it yields
+	 * results compatible with the on-phone Keyring Javascript and Mojo code.
+	 * 
+	 * In newPassword() in ring.js, we have this (around line 165):
+	 * this._key = b64_sha256(this._salt + newPassword);
+	 * 
+	 * @return SHA-256 of the salt and the UTF-8 password.  The caller owns the
+	 * array, and should zero it once it's done with it.
+	 */
+	private byte[] hashPassword(char[] password) throws GeneralSecurityException {
+		// Charset.encode() replaces unmappable chars, as OutputStreamWriter did
+		ByteBuffer passwordBytes = UTF8.encode(CharBuffer.wrap(password));
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		md.update(salt.getBytes(UTF8));
+		md.update(passwordBytes);
+		// Don't leave a copy of the password lying around on the heap
+		Arrays.fill(passwordBytes.array(), (byte) 0);
+		return md.digest();
+	}
+
+	/**
+	 * Derive the Blowfish key from a password hash and make it the Ring's key.
+	 * 
+	 * @return The checkData plaintext for this key.
+	 */
+	private String setKey(byte[] hash) {
+		/* The Javascript SHA-256 library used in Keyring doesn't pad base64 output,
+		 * so neither do we. */
+		String base64Key = Base64Codec.encodeUnpadded(hash);
+		key = newKey(base64Key);
+		return "{" + base64Key + "}";
+	}
+
+	private static SecretKeySpec newKey(String base64Key) {
+		byte[] keyBytes = base64Key.getBytes(UTF8);
+		/* Keyring passes data to Mojo.Model.encrypt(key, data), which eventually
+		 * make a JNI call to OpenSSL's blowfish api.  The following is the
+		 * equivalent in straight up JCE. */
+		SecretKeySpec newKey = new SecretKeySpec(keyBytes, "Blowfish");
+		// SecretKeySpec keeps its own copy
+		Arrays.fill(keyBytes, (byte) 0);
+		return newKey;
+	}
+
+	/**
+	 * Check a password hash against checkData, with a Cipher of its own.
+	 * The Ring's key, which other threads may be encrypting with, isn't
+	 * touched.
+	 * 
+	 * @return The key for hash if it's the right one, otherwise null.
+	 */
+	private SecretKeySpec checkKey(byte[] hash) throws GeneralSecurityException {
+		String base64Key = Base64Codec.encodeUnpadded(hash);
+		SecretKeySpec candidate = newKey(base64Key);
+		Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+		initBlowfish(cipher, Cipher.DECRYPT_MODE, candidate);
+		ByteBuffer crypted = decodeBase64(checkData);
+		ByteBuffer plain = ByteBuffer.allocate(crypted.remaining());
+		cipher.doFinal(crypted, plain);
+		plain.flip();
+		plain.position(jsonStart(plain, 0));
+		byte[] expected = ("{" + base64Key + "}").getBytes(UTF8);
 		try {
-			// Convert a char array into a UTF-8 byte array
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			OutputStreamWriter out = new OutputStreamWriter(baos, "UTF-8");
-			try {
-				out.write(password);
-				out.close();
-			} catch (IOException e) {
-				// the only reason this would throw is an encoding problem.
-				throw new RuntimeException(e.getLocalizedMessage());
-			}
-			byte[] passwordBytes = baos.toByteArray();
+			return plain.equals(ByteBuffer.wrap(expected)) ? candidate : null;
+		} finally {
+			Arrays.fill(plain.array(), (byte) 0);
+			Arrays.fill(expected, (byte) 0);
+		}
+	}
 
-			/* The following code looks like a lot of monkey-motion, but it yields
-			 * results compatible with the on-phone Keyring Javascript and Mojo code.
-			 * 
-			 * In newPassword() in ring.js, we have this (around line 165):
-			 * this._key = b64_sha256(this._salt + newPassword); */
-			byte[] saltBytes = salt.getBytes("UTF-8");
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			md.update(saltBytes, 0, saltBytes.length);
-			md.update(passwordBytes, 0, passwordBytes.length);
-			byte[] keyHash = md.digest();
-			String paddedBase64Key = Base64.encodeBytes(keyHash);
-			/* The Javascript SHA-256 library used in Keyring doesn't pad base64 output,
-			 * so we need to trim off any trailing "=" signs. */
-			base64Key = paddedBase64Key.replace("=", "");
-			byte[] keyBytes = base64Key.getBytes("UTF-8");
-
-			/* Keyring passes data to Mojo.Model.encrypt(key, data), which eventually
-			 * make a JNI call to OpenSSL's blowfish api.  The following is the
-			 * equivalent in straight up JCE. */
-			key = new SecretKeySpec(keyBytes, "Blowfish");
-			iv = new IvParameterSpec( new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 } );
-		}
-		catch (UnsupportedEncodingException e) {
-			// This is a bit dodgy, but handling a UEE elsewhere is foolish
-			throw new GeneralSecurityException(e.getLocalizedMessage());
+	/**
+	 * Check a password against the Ring.
+	 * 
+	 * The first call after load() has to decrypt the db to find out.  After
+	 * that the hash of the verified password is cached, and later calls (the
+	 * GUI asks again after every timeout) just hash the candidate and do a
+	 * constant-time compare.  The ciphers keep their key, and checkData isn't
+	 * touched.  If the cache has been cleared, the password is checked
+	 * against checkData once, and cached again.
+	 * 
+	 * A wrong password leaves the Ring's key as it was.  Once the db is
+	 * loaded, a candidate is checked without ever becoming the Ring's key,
+	 * so nothing running on other threads (re-locking, saves) can encrypt
+	 * with it.
+	 */
+	public boolean validatePassword(char[] password)
+			throws GeneralSecurityException {
+		try {
+			return validatePassword(password, null);
+		} catch (InterruptedException e) {
+			// Only checked for with a listener
+			throw new RuntimeException(e);
 		}
-		return "{" + base64Key + "}";
 	}
-	
-	public boolean validatePassword(char[] password) throws GeneralSecurityException {
+
+	/**
+	 * As validatePassword(char[]), reporting the progress of the first call
+	 * after load(), which decrypts and parses the db, to listener.
+	 *
+	 * @throws InterruptedException If the calling thread was interrupted
+	 * while the db was being parsed.  The Ring is left as if this hadn't
+	 * been called, so it can be tried again.
+	 */
+	public synchronized boolean validatePassword(char[] password, LoadListener listener)
+			throws GeneralSecurityException, InterruptedException {
 		log("validatePassword()");
-		String tmpCheckData = initCipher(password);
+		byte[] hash = hashPassword(password);
 		if (! fullyLoaded) {
 			/* Startup in process.  See if the supplied password will
 			 * decrypt the db. */
-			return decryptLoadedData();
+			SecretKeySpec oldKey = key;
+			boolean loaded = false;
+			setKey(hash);
+			try {
+				loaded = decryptLoadedData(listener);
+			} finally {
+				if (! loaded) {
+					key = oldKey;
+				}
+			}
+			if (loaded) {
+				keyHash = hash;
+				return true;
+			}
+		} else if (null != keyHash) {
+			if (MessageDigest.isEqual(keyHash, hash)) {
+				Arrays.fill(hash, (byte) 0);
+				return true;
+			}
 		} else {
-			return decrypt(checkData).equals(tmpCheckData);
+			SecretKeySpec checked = checkKey(hash);
+			if (null != checked) {
+				key = checked;
+				keyHash = hash;
+				return true;
+			}
+		}
+		Arrays.fill(hash, (byte) 0);
+		return false;
+	}
+
+	/**
+	 * Forget the password: zero the cached hash, drop the key, and wipe every
+	 * thread's ciphers.  Until validatePassword() has checked the password
+	 * against checkData again, anything that needs the key, like unlocking
+	 * or locking an Item or saving, fails with a GeneralSecurityException.
+	 * So lock every Item, and save, first.
+	 */
+	public synchronized void clearKeyCache() {
+		if (null != keyHash) {
+			Arrays.fill(keyHash, (byte) 0);
+			keyHash = null;
+		}
+		if (fullyLoaded) {
+			// Before loading, the key is still needed to decrypt the db
+			key = null;
+			synchronized (allEngines) {
+				for (CipherEngine engine : allEngines) {
+					engine.wipe();
+				}
+			}
 		}
+		// Hosts and search words were decrypted with that key
+		index.clearHosts();
+		search = null;
 	}
 	
 	/**
@@ -236,6 +664,19 @@ public class Ring {
 	@SuppressWarnings("unchecked")
 	public JSONObject getExportData() throws GeneralSecurityException {
 		log("getExportData()");
+		JSONObject export = new JSONObject();
+		export.put("schema_version", schemaVersion);
+		export.put("salt", salt);
+		export.put("db", encrypt(getDataObject().toJSONString(), DB_SALT_LENGTH));
+		
+		return export;
+	}
+
+	/**
+	 * @return The _dataObject() described in getExportData().
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject getDataObject() {
 		JSONObject dataObject = new JSONObject();
 		dataObject.put("db", db);
 		dataObject.put("categories", categoriesById);
@@ -247,15 +688,79 @@ public class Ring {
 		if (null != prefs) {
 			dataObject.put("prefs", prefs);
 		}
+		return dataObject;
+	}
 
-		JSONObject export = new JSONObject();
-		export.put("schema_version", schemaVersion);
-		export.put("salt", salt);
-		export.put("db", encrypt(dataObject.toJSONString(), DB_SALT_LENGTH));
-		
-		return export;
+	/**
+	 * Write the same data as getExportData() to the given stream.
+	 * 
+	 * The data object is serialized item by item through a CipherOutputStream
+	 * and a Base64 encoding stream, straight into os, so memory use doesn't
+	 * grow with the size of the Ring.  os is flushed but not closed.
+	 */
+	public void writeExportData(OutputStream os)
+			throws IOException, GeneralSecurityException {
+		log("writeExportData()");
+		SecretKeySpec current = key;
+		if (null == current) {
+			throw new GeneralSecurityException(LOCKED);
+		}
+		encryptCount.increment();
+		Writer outer = new OutputStreamWriter(os, "UTF-8");
+		outer.write("{\"schema_version\":");
+		outer.write(String.valueOf(schemaVersion));
+		outer.write(",\"salt\":\"");
+		outer.write(JSONValue.escape(salt));
+		outer.write("\",\"db\":\"");
+		outer.flush();
+
+		/* Items encrypt themselves with this thread's CipherEngine while
+		 * they're being serialized, so the stream gets a Cipher of its own. */
+		Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+		initBlowfish(cipher, Cipher.ENCRYPT_MODE, current);
+		Writer payload = new BufferedWriter(new OutputStreamWriter(
+				new CipherOutputStream(
+						Base64Codec.encodingStream(new UnclosableOutputStream(os)),
+						cipher),
+				"UTF-8"));
+		payload.write(saltString(DB_SALT_LENGTH, null));
+		try {
+			getDataObject().writeJSONString(payload);
+		}
+		catch (RuntimeException e) {
+			// Item.toJSONString() can only throw unchecked exceptions
+			if (e.getCause() instanceof GeneralSecurityException) {
+				throw (GeneralSecurityException) e.getCause();
+			}
+			throw e;
+		}
+		// Finishes the cipher and the Base64 padding, but leaves os open
+		payload.close();
+
+		outer.write("\"}");
+		outer.flush();
 	}
-	
+
+	/**
+	 * Lets a chain of encoding streams be closed, to make them flush their
+	 * final block, without closing the stream underneath.
+	 */
+	private static class UnclosableOutputStream extends FilterOutputStream {
+		UnclosableOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
 	/**
 	 * Encrypt the given data with our key, prepending saltLength random
 	 * characters.
@@ -263,60 +768,237 @@ public class Ring {
 	 * @return Base64 encoded representation of the encrypted data.
 	 */
 	String encrypt(String data, int saltLength) throws GeneralSecurityException {
-		log("encrypt()");
-		try {
-			cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-		}
-		catch (InvalidKeyException ike) {
-			throw new GeneralSecurityException("InvalidKeyException: " +
-					ike.getLocalizedMessage() + "\nYou (probably) need to " +
-					"install the \"Java Cryptography Extension (JCE) " +
-					"Unlimited Strength Jurisdiction Policy\" files.  Go to " +
-					"http://java.sun.com/javase/downloads/index.jsp, download them, " +
-			"and follow the instructions.");
+		CipherEngine engine = getCipherEngine();
+		if (data.length() > MAX_ENGINE_STRING) {
+			byte[] plain = data.getBytes(UTF8);
+			try {
+				ByteBuffer crypted = encrypt(engine, ByteBuffer.wrap(plain), saltLength, null);
+				return Base64Codec.encodeOnce(crypted.array(), 0, crypted.limit());
+			} finally {
+				Arrays.fill(plain, (byte) 0);
+			}
 		}
-		String salted = saltString(saltLength, data);
-		byte[] crypted;
-		byte[] saltedBytes;
+		ByteBuffer crypted;
 		try {
-			saltedBytes = salted.getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new GeneralSecurityException(e.getLocalizedMessage());
+			crypted = encrypt(engine, engine.encode(data), saltLength,
+					engine.cryptBuffer);
+		} finally {
+			engine.clearPlain();
+		}
+		engine.cryptBuffer = crypted;
+		return engine.base64.encode(crypted.array(),
+				crypted.arrayOffset() + crypted.position(), crypted.remaining());
+	}
+
+	/**
+	 * Encrypt the bytes remaining in plain, prepending saltLength random
+	 * characters.
+	 * 
+	 * @param out Receives the ciphertext if it's big enough, may be null.
+	 * @return The buffer holding the ciphertext (out, or a new buffer if out
+	 * was too small), flipped for reading.
+	 */
+	ByteBuffer encrypt(ByteBuffer plain, int saltLength, ByteBuffer out)
+			throws GeneralSecurityException {
+		return encrypt(getCipherEngine(), plain, saltLength, out);
+	}
+
+	private ByteBuffer encrypt(CipherEngine engine, ByteBuffer plain,
+			int saltLength, ByteBuffer out) throws GeneralSecurityException {
+		encryptCount.increment();
+		if (LOG.isLoggable(Level.FINEST)) {
+			LOG.finest("encrypt()");
 		}
-		crypted = cipher.doFinal(saltedBytes);
-		return Base64.encodeBytes(crypted);
+		out = ensureCapacity(out, saltLength + plain.remaining());
+		engine.run(engine.encryptor, saltBytes(saltLength), plain, out);
+		out.flip();
+		return out;
 	}
 
 	String decrypt(String cryptext) throws GeneralSecurityException {
-		log("decrypt()");
+		CipherEngine engine = getCipherEngine();
+		ByteBuffer crypted;
+		if (cryptext.length() > MAX_ENGINE_STRING) {
+			crypted = decodeBase64(cryptext);
+		} else {
+			try {
+				crypted = engine.base64.decode(cryptext);
+			} catch (IllegalArgumentException e) {
+				throw new GeneralSecurityException(e.getLocalizedMessage());
+			}
+		}
+		// In place, in the codec's buffer or our own
 		try {
-			cipher.init(Cipher.DECRYPT_MODE, key, iv);
+			ByteBuffer plain = decrypt(engine, crypted, crypted);
+			return new String(plain.array(), plain.arrayOffset() + plain.position(),
+					plain.remaining(), UTF8);
+		} finally {
+			// The codec's buffer lives as long as the thread, the plaintext shouldn't
+			Arrays.fill(crypted.array(), crypted.arrayOffset(),
+					crypted.arrayOffset() + crypted.limit(), (byte) 0);
 		}
-		catch (InvalidKeyException ike) {
-			throw new GeneralSecurityException("InvalidKeyException: " +
-					ike.getLocalizedMessage() + "\nYou (probably) need to " +
-					"install the \"Java Cryptography Extension (JCE) " +
-					"Unlimited Strength Jurisdiction Policy\" files.  Go to " +
-					"http://java.sun.com/javase/downloads/index.jsp, download them, " +
-			"and follow the instructions.");
+	}
+
+	/**
+	 * Decrypt the bytes remaining in crypted.
+	 * 
+	 * @param out Receives the plaintext if it's big enough, may be null.  May
+	 * be crypted itself, for in-place decryption.
+	 * @return The buffer holding the plaintext (out, or a new buffer if out
+	 * was too small), positioned just past the salt, at the start of the JSON
+	 * data, with its limit at the end of the data.
+	 */
+	ByteBuffer decrypt(ByteBuffer crypted, ByteBuffer out)
+			throws GeneralSecurityException {
+		return decrypt(getCipherEngine(), crypted, out);
+	}
+
+	private ByteBuffer decrypt(CipherEngine engine, ByteBuffer crypted,
+			ByteBuffer out) throws GeneralSecurityException {
+		decryptCount.increment();
+		if (LOG.isLoggable(Level.FINEST)) {
+			LOG.finest("decrypt()");
 		}
-		byte[] crypted;
-		try {
-			crypted = Base64.decode(cryptext);
-		} catch (IOException e) {
-			throw new GeneralSecurityException(e.getLocalizedMessage());
+		if (out == crypted) {
+			// In place; Cipher copes with overlapping arrays
+			out = crypted.duplicate();
+			out.limit(out.capacity());
+		} else {
+			out = ensureCapacity(out, crypted.remaining());
 		}
-		byte[] decrypted = cipher.doFinal(crypted);
-		String salted;
+		int start = out.position();
+		engine.run(engine.decryptor, null, crypted, out);
+		out.limit(out.position());
+		out.position(jsonStart(out, start));
+		return out;
+	}
+
+	private static ByteBuffer decodeBase64(String cryptext)
+			throws GeneralSecurityException {
 		try {
-			salted = new String(decrypted, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
+			return ByteBuffer.wrap(Base64Codec.decodeOnce(cryptext));
+		} catch (IllegalArgumentException e) {
 			throw new GeneralSecurityException(e.getLocalizedMessage());
 		}
-        // Remove any leading non-JSON salt characters
-        return salted.replaceAll("^[^\\{]*\\{", "{");
+	}
+
+	/**
+	 * Find the end of the salt, i.e. the opening brace of the JSON data.
+	 * Salt characters never include '{' (see saltString()).
+	 * 
+	 * @return Index of the first '{' at or after from, or from if there
+	 * isn't one.
+	 */
+	private static int jsonStart(ByteBuffer salted, int from) {
+		for (int i = from; i < salted.limit(); i++) {
+			if (salted.get(i) == '{') {
+				return i;
+			}
+		}
+		return from;
+	}
+	
+	/**
+	 * In field crypto mode each Item also encrypts its attributes one by one,
+	 * so that, say, listing urls doesn't decrypt everybody's notes.  Items
+	 * pick up the per-attribute ciphertexts the next time they're locked,
+	 * and they're saved in an "encrypted_fields" object alongside the
+	 * encrypted_data blob.  Keyring on the phone doesn't know about them; if
+	 * it rewrites the blob they no longer match, and are dropped.  Each is
+	 * padded to a multiple of 64 bytes, so they give away no more about the
+	 * attributes' lengths than the blob does.
+	 * 
+	 * Locking costs five encryptions per Item instead of one.  Loading a
+	 * file that has per-attribute ciphertexts turns the mode on.
+	 */
+	public void setFieldCrypto(boolean fieldCrypto) {
+		this.fieldCrypto = fieldCrypto;
+	}
+
+	public boolean isFieldCrypto() {
+		return fieldCrypto;
+	}
+
+	/**
+	 * Bound the plaintext kept on the heap.  Items unlocked through their
+	 * getters otherwise stay unlocked until they're saved; with the cache
+	 * on, the least recently used ones are re-locked once more than maxItems
+	 * are unlocked, and any that go unused for idleMillis are re-locked too.
+	 * Re-locking happens on a background thread.
+	 * 
+	 * Items that are already unlocked are tracked from their next use.
+	 * Turning the cache off (both arguments 0) or replacing it re-locks
+	 * everything the old cache was tracking.
+	 * 
+	 * @param maxItems Most Items kept unlocked, 0 for no limit.
+	 * @param idleMillis Re-lock an Item this long after its last use, 0 for
+	 * never.
+	 */
+	public synchronized void setPlaintextCache(int maxItems, long idleMillis) {
+		PlaintextCache old = plaintextCache;
+		plaintextCache = maxItems > 0 || idleMillis > 0
+			? new PlaintextCache(maxItems, idleMillis) : null;
+		if (null != old) {
+			old.shutdown();
+		}
+	}
+
+	PlaintextCache getPlaintextCache() {
+		return plaintextCache;
+	}
+
+	/**
+	 * Re-lock every Item the plaintext cache is tracking, now.
+	 */
+	public void clearPlaintextCache() {
+		PlaintextCache cache = plaintextCache;
+		if (null != cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * @return Number of Items the plaintext cache is keeping unlocked, 0 if
+	 * there's no cache.
+	 */
+	public int getCachedItemCount() {
+		PlaintextCache cache = plaintextCache;
+		return null == cache ? 0 : cache.size();
+	}
+
+	/**
+	 * @return Number of encryptions done by this Ring, one per item lock
+	 * (five in field crypto mode) or whole-db export.
+	 */
+	public long getEncryptCount() {
+		return encryptCount.sum();
+	}
+
+	/**
+	 * @return Number of decryptions done by this Ring, one per item unlock,
+	 * password check or whole-db load.
+	 */
+	public long getDecryptCount() {
+		return decryptCount.sum();
+	}
+
+	public void resetCryptoCounts() {
+		encryptCount.reset();
+		decryptCount.reset();
 	}
 	
+	/**
+	 * Generate random salt characters as ASCII bytes.
+	 */
+	private byte[] saltBytes(int numChars) {
+		byte[] salt = new byte[numChars];
+		for (int i = 0; i < numChars; i++) {
+			// Random character from ASCII 33 to 122 
+			salt[i] = (byte) (rnd.nextInt(89) + 33);
+		}
+		return salt;
+	}
+
 	/**
 	 * Generate random salt characters, optionally prepending them to the
 	 * supplied suffix.
@@ -338,20 +1020,373 @@ public class Ring {
 	}
 	
 	public boolean removeItem(Item item) {
-		return null != db.remove(item.getTitle());		
+		return null != dbRemove(item.getTitle());
 	}
 	
 	public void addItem(Item item) {
-		db.put(item.getTitle(), item);
+		dbPut(item.getTitle(), item);
 		fullyLoaded = true;
 	}
+
+	/**
+	 * Put an Item into db and the indexes, dropping any Item it replaces.
+	 */
+	private void dbPut(String key, Item item) {
+		Item replaced = db.put(key, item);
+		if (null != replaced && replaced != item) {
+			index.remove(replaced);
+		}
+		index.add(item);
+		SearchIndex current = search;
+		if (null != current) {
+			if (null != replaced && replaced != item) {
+				current.removed(replaced);
+			}
+			current.changed(item);
+		}
+	}
+
+	private Item dbRemove(String key) {
+		Item removed = db.remove(key);
+		if (null != removed) {
+			index.remove(removed);
+			SearchIndex current = search;
+			if (null != current) {
+				current.removed(removed);
+			}
+		}
+		return removed;
+	}
 	
 	public Item getItem(String title) {
-		return db.get(title);
+		return null == title ? null : db.get(title);
+	}
+
+	public Collection<Item> getItems() {
+		return db.values();
+	}
+
+	/**
+	 * Date orders for getItemsByDate(), and with BY_TITLE and BY_CATEGORY,
+	 * the orders for getSortedItems().
+	 */
+	public static final int BY_CREATED = ItemIndex.CREATED;
+	public static final int BY_CHANGED = ItemIndex.CHANGED;
+	public static final int BY_VIEWED = ItemIndex.VIEWED;
+	public static final int BY_TITLE = ItemIndex.TITLE;
+	/**
+	 * By category id, then title.
+	 */
+	public static final int BY_CATEGORY = ItemIndex.CATEGORY;
+
+	/**
+	 * A sorted view of the Items, for browsing.  The view is built the first
+	 * time it's asked for, and then kept in order as Items are added,
+	 * removed and changed, so asking again costs nothing.  It's a live,
+	 * read-only, random access List; indexOf() is O(log n).
+	 *
+	 * @param order BY_TITLE, BY_CATEGORY, BY_CREATED, BY_CHANGED or BY_VIEWED.
+	 * @param categoryId A category id, or -1 ("All") for every Item.
+	 * @return The Items, in ascending order.
+	 */
+	public List<Item> getSortedItems(int order, int categoryId) {
+		return index.view(order, -1 == categoryId ? ItemIndex.ALL : categoryId);
+	}
+
+	/**
+	 * @param categoryId A category id, or -1 ("All") for every Item.
+	 * @return The Items in the category, in no particular order.
+	 */
+	public List<Item> getItemsInCategory(int categoryId) {
+		if (-1 == categoryId) {
+			return new ArrayList<Item>(db.values());
+		}
+		return index.inCategory(categoryId);
+	}
+
+	/**
+	 * @param field BY_CREATED, BY_CHANGED or BY_VIEWED.
+	 * @param max Most Items to return, 0 for all of them.
+	 * @return Items, most recent first.
+	 */
+	public List<Item> getItemsByDate(int field, int max) {
+		return index.byDate(field, max);
+	}
+
+	/**
+	 * @param field BY_CREATED, BY_CHANGED or BY_VIEWED.
+	 * @param since Epoch millis.
+	 * @return Items dated at or after since, most recent first.
+	 */
+	public List<Item> getItemsSince(int field, long since) {
+		return index.since(field, since);
+	}
+
+	/**
+	 * Find the logins for a site, by the host of their URL.  Subdomains of
+	 * an Item's host find it too.
+	 *
+	 * The URL is encrypted, so hosts are indexed as Items are unlocked or
+	 * have their URL read.  If any Item's host isn't indexed yet, the
+	 * rest are filled in first (see buildHostIndex()); clearKeyCache()
+	 * drops them all.
+	 *
+	 * @param url A URL, or just a host name.
+	 */
+	public List<Item> getItemsForUrl(String url)
+			throws GeneralSecurityException, KeyringException {
+		if (! index.hostsComplete()) {
+			buildHostIndex(ForkJoinPool.commonPool(), null);
+		}
+		return index.forUrl(url);
+	}
+
+	/**
+	 * Read the URL of every Item whose host isn't indexed, decrypting in
+	 * batches on the executor, as unlockAll() does.  Items that were
+	 * locked are left locked.
+	 */
+	public void buildHostIndex(Executor executor, ProgressListener listener)
+			throws GeneralSecurityException, KeyringException {
+		synchronized (hostLock) {
+			if (index.hostsComplete()) {
+				return;
+			}
+			log("buildHostIndex()");
+			processAllItems(executor, listener, new ItemTask() {
+				public void process(Item item) throws Exception {
+					if (index.hostKnown(item)) {
+						return;
+					}
+					synchronized (item) {
+						boolean wasLocked = item.isLocked();
+						String url = item.getUrl();
+						if (wasLocked && ! item.isLocked()) {
+							item.lock();
+						}
+						urlKnown(item, url);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called by Items when their category or dates change.
+	 */
+	void itemUpdated(Item item) {
+		index.update(item);
+	}
+
+	/**
+	 * Called by Items when their username, password, url or notes change.
+	 */
+	void itemTextChanged(Item item) {
+		SearchIndex current = search;
+		if (null != current) {
+			current.changed(item);
+		}
+	}
+
+	/**
+	 * Find Items by the words in their title, username, url and notes.
+	 * Each word of the query has to match a word in the Item, in full, as
+	 * a prefix, or, for words of four or more characters, with one typo.
+	 *
+	 * The index is built by the first search (see buildSearchIndex()), and
+	 * kept up to date as Items change.  It's only kept in memory, and as
+	 * keyed hashes rather than words; clearKeyCache() drops it.
+	 *
+	 * @param max Most Items to return, 0 for all of them.
+	 * @return Matching Items, best matches first.
+	 */
+	public List<Item> search(String query, int max)
+			throws GeneralSecurityException, KeyringException {
+		SearchIndex current = search;
+		if (null == current) {
+			synchronized (searchLock) {
+				if (null == search) {
+					buildSearchIndex(ForkJoinPool.commonPool(), null);
+				}
+				current = search;
+			}
+		}
+		return current.search(query, max);
+	}
+
+	/**
+	 * Build the search index from scratch, decrypting the Items in batches
+	 * on the executor, as unlockAll() does.  Items that were locked are
+	 * left locked.
+	 */
+	public void buildSearchIndex(Executor executor, ProgressListener listener)
+			throws GeneralSecurityException, KeyringException {
+		log("buildSearchIndex()");
+		synchronized (searchLock) {
+			final SearchIndex built = new SearchIndex(this);
+			// Changes made while we're building get queued on it
+			search = built;
+			boolean done = false;
+			try {
+				processAllItems(executor, listener, new ItemTask() {
+					public void process(Item item) throws Exception {
+						built.add(item);
+					}
+				});
+				done = true;
+			} finally {
+				if (! done && search == built) {
+					search = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called by Items when their URL is decrypted or set.
+	 */
+	void urlKnown(Item item, String url) {
+		index.urlKnown(item, url);
+	}
+
+	/**
+	 * Receives progress reports from the bulk item operations.
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param done Number of items processed so far.
+		 * @param total Number of items to be processed.
+		 */
+		void progress(int done, int total);
+	}
+
+	/**
+	 * Decrypt every locked Item, spread across the common ForkJoinPool.
+	 */
+	public void unlockAll() throws GeneralSecurityException, KeyringException {
+		unlockAll(ForkJoinPool.commonPool(), null);
+	}
+
+	/**
+	 * Decrypt every locked Item, in batches run on the supplied executor.
+	 * 
+	 * @param executor Runs the batches, e.g. a ForkJoinPool.
+	 * @param listener If non-null, called on the calling thread as each
+	 * batch finishes.
+	 */
+	public void unlockAll(Executor executor, ProgressListener listener)
+			throws GeneralSecurityException, KeyringException {
+		log("unlockAll()");
+		processAllItems(executor, listener, new ItemTask() {
+			public void process(Item item) throws Exception {
+				synchronized (item) {
+					if (item.isLocked()) {
+						item.unlock();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Encrypt every unlocked Item, spread across the common ForkJoinPool.
+	 */
+	public void lockAll() throws GeneralSecurityException, KeyringException {
+		lockAll(ForkJoinPool.commonPool(), null);
+	}
+
+	/**
+	 * Encrypt every unlocked Item, in batches run on the supplied executor.
+	 * 
+	 * @see #unlockAll(Executor, ProgressListener)
+	 */
+	public void lockAll(Executor executor, ProgressListener listener)
+			throws GeneralSecurityException, KeyringException {
+		log("lockAll()");
+		processAllItems(executor, listener, new ItemTask() {
+			public void process(Item item) throws Exception {
+				synchronized (item) {
+					if (! item.isLocked()) {
+						item.lock();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Something done to every Item by processAllItems().
+	 */
+	private interface ItemTask {
+		void process(Item item) throws Exception;
 	}
 
-	public Collection<Item> getItems() {
-		return db.values();
+	/**
+	 * Split the items into batches, run the task over each batch on the
+	 * executor, and wait for them all to finish.  The first failure is
+	 * rethrown once the outstanding batches have been cancelled.
+	 */
+	private void processAllItems(Executor executor, ProgressListener listener,
+			final ItemTask task) throws GeneralSecurityException, KeyringException {
+		List<Item> items = new ArrayList<Item>(db.values());
+		int total = items.size();
+		int batchSize = Math.max(MIN_BATCH_SIZE,
+				total / (Runtime.getRuntime().availableProcessors() * 4) + 1);
+
+		CompletionService<Integer> completion =
+			new ExecutorCompletionService<Integer>(executor);
+		List<Future<Integer>> batches = new ArrayList<Future<Integer>>();
+		for (int start = 0; start < total; start += batchSize) {
+			final List<Item> batch = items.subList(start, Math.min(total, start + batchSize));
+			batches.add(completion.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					for (Item item : batch) {
+						task.process(item);
+					}
+					return batch.size();
+				}
+			}));
+		}
+
+		int done = 0;
+		try {
+			for (int i = 0; i < batches.size(); i++) {
+				done += completion.take().get();
+				if (null != listener) {
+					listener.progress(done, total);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KeyringException("Interrupted after " + done + " of " +
+					total + " items", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			// A ForkJoinPool hands back checked exceptions wrapped in
+			// RuntimeExceptions
+			for (Throwable c = cause; null != c; c = c.getCause()) {
+				if (c instanceof GeneralSecurityException || c instanceof KeyringException) {
+					cause = c;
+					break;
+				}
+			}
+			if (cause instanceof GeneralSecurityException) {
+				throw (GeneralSecurityException) cause;
+			} else if (cause instanceof KeyringException) {
+				throw (KeyringException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new KeyringException(cause);
+		}
+		finally {
+			// No-op for the batches that already finished
+			for (Future<Integer> batch : batches) {
+				batch.cancel(false);
+			}
+		}
 	}
 
 	public String getSalt() {
@@ -395,6 +1430,26 @@ public class Ring {
 		return retval;
 	}
 
+	/**
+	 * Replace the categories with a loaded set.
+	 */
+	private void setCategories(Map<Integer, String> categories) {
+		categoriesById = new ConcurrentHashMap<Integer, String>();
+		categoriesByName = new TreeMap<String, Integer>();
+		nextCategory = 1;
+		for (Map.Entry<Integer, String> cat : categories.entrySet()) {
+			if (null == cat.getValue()) {
+				continue;
+			}
+			categoriesById.put(cat.getKey(), cat.getValue());
+			categoriesByName.put(cat.getValue(), cat.getKey());
+			// Don't hand out an id that's already taken
+			nextCategory = Math.max(nextCategory, cat.getKey() + 1);
+		}
+		// make sure we always have the "all" and "unfiled" categories
+		setDefaultCategories();
+	}
+
 	/**
 	 * Put the default "Unfiled" and "All" categories into the Maps.
 	 */
@@ -405,46 +1460,299 @@ public class Ring {
 		categoriesByName.put("All", -1);
 	}
 
+	/**
+	 * Receives progress reports from load() and the first validatePassword()
+	 * after it, on the thread doing the work.  Either can be cancelled by
+	 * interrupting that thread.
+	 */
+	public interface LoadListener {
+		/**
+		 * Reading the backup.
+		 *
+		 * @param bytes Bytes read so far.
+		 * @param total Size of the backup, or -1 if it isn't known.
+		 */
+		void read(long bytes, long total);
+
+		/**
+		 * Parsing the decrypted db.
+		 *
+		 * @param bytes Bytes of the db parsed so far.
+		 * @param total Size of the decrypted db.
+		 * @param items Number of Items made so far.
+		 */
+		void parsed(long bytes, long total, int items);
+	}
+
 	public void load(String inFile) throws IOException, KeyringException {
+		load(inFile, null);
+	}
+
+	/**
+	 * Read a backup, from a local file, a URL, or "-" for stdin.  Nothing
+	 * is decrypted until validatePassword().
+	 *
+	 * @param listener Told about progress, or null.
+	 * @throws InterruptedIOException If the calling thread was interrupted,
+	 * only checked for with a listener.
+	 */
+	public void load(String inFile, LoadListener listener)
+			throws IOException, KeyringException {
 		log("load(" + inFile + ")");
+		MessageDigest md = null;
+		BackupContentHandler handler = null;
+		boolean local = ! inFile.equals("-") && ! inFile.startsWith("http");
+		if (local) {
+			md = newFingerprintDigest();
+			if (mappedLoad && CAN_MAP) {
+				handler = loadMapped(new File(inFile), md, listener);
+			}
+		}
+		if (null == handler) {
+			handler = loadStream(inFile, md, listener);
+		}
+		loaded(inFile, handler, md);
+	}
+
+	/**
+	 * As load(), without waiting for it.  The response to a URL is waited
+	 * for without tying up a thread, and read and parsed by the thread that
+	 * receives it.  Anything else is loaded on the common pool.  Either way,
+	 * listener is called from that thread.
+	 */
+	public CompletableFuture<Void> loadAsync(final String inFile,
+			final LoadListener listener) {
+		if (! inFile.startsWith("http")) {
+			return CompletableFuture.runAsync(new Runnable() {
+				public void run() {
+					try {
+						load(inFile, listener);
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				}
+			});
+		}
+		log("loadAsync(" + inFile + ")");
+		return HttpTransport.getDefault().fetch(inFile, listener)
+			.thenApply(new Function<InputStream, Void>() {
+				public Void apply(InputStream is) {
+					try {
+						loaded(inFile, parseBackup(is, true), null);
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+					return null;
+				}
+			});
+	}
+
+	/**
+	 * Take on a backup read by load().
+	 *
+	 * @param md Digest of the local file it came from, or null.
+	 */
+	private void loaded(String inFile, BackupContentHandler handler,
+			MessageDigest md) throws KeyringException {
+        if (schemaVersion != handler.schemaVersion) {
+        	// TODO Handle other versions sanely
+        	throw new KeyringException("Incompatible schema version " + handler.schemaVersion);
+        }
+        salt = handler.salt;
+        cryptedDb = handler.cryptedDb;
+        if (null != md) {
+        	baseFile = inFile;
+        	baseFingerprint = Base64Codec.encodeUnpadded(md.digest());
+        } else {
+        	baseFile = baseFingerprint = null;
+        }
+	}
+
+	/**
+	 * Read a backup through the JSON parser.
+	 *
+	 * @param md Digest to fingerprint a local file with, or null.
+	 */
+	private BackupContentHandler loadStream(String inFile, MessageDigest md,
+			LoadListener listener) throws IOException, KeyringException {
 		InputStream is;
 		if (inFile.equals("-")) {
-			is = System.in;
+			is = ProgressInputStream.wrap(System.in, -1, listener);
 		} else if (inFile.startsWith("http")) {
-			is = new URL(inFile).openStream();
+			is = HttpTransport.getDefault().open(inFile, listener);
 		} else {
-			is = new FileInputStream(new File(inFile));
+			File file = new File(inFile);
+			is = ProgressInputStream.wrap(
+					new DigestInputStream(new FileInputStream(file), md),
+					file.length(), listener);
 		}
+		return parseBackup(is, ! inFile.equals("-"));
+	}
+
+	/**
+	 * @param readAll Read is to the end and close it, rather than stopping
+	 * at the end of the backup, as for stdin.
+	 */
+	private BackupContentHandler parseBackup(InputStream is, boolean readAll)
+			throws IOException, KeyringException {
         BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-        JSONObject obj;
+        // Loaded data has three attrs, 'db', 'salt' & 'schema_version'
+        BackupContentHandler handler = new BackupContentHandler(this);
 		try {
-			obj = (JSONObject) parser.parse(reader);
+			getParser().parse(reader, handler);
+			if (readAll) {
+				// Local files are fingerprinted, and downloads cached, whole,
+				// trailing whitespace too
+				char[] rest = new char[1024];
+				while (reader.read(rest) >= 0) {
+					// Nothing
+				}
+			}
 		} catch (ParseException e) {
 			// ParseException's toString() method returns a good error message
 			throw new KeyringException("Unparseable JSON data: " + e);
+		} catch (ClassCastException e) {
+			throw new KeyringException("Not a Keyring backup: " + e.getMessage());
+		} finally {
+			if (readAll) {
+				reader.close();
+			}
+		}
+		return handler;
+	}
+
+	/**
+	 * Read a local backup by memory-mapping it, and parsing the outer layer
+	 * straight from the mapped bytes (see MappedBackupReader).
+	 *
+	 * @return The filled in handler, or null if the file has to go through
+	 * loadStream() after all, in which case md hasn't been touched.
+	 */
+	private BackupContentHandler loadMapped(File file, MessageDigest md,
+			LoadListener listener) throws IOException {
+		MappedByteBuffer map;
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			if (channel.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid
+			channel.close();
+		}
+		BackupContentHandler handler = new BackupContentHandler(this);
+		try {
+			if (! MappedBackupReader.read(map.duplicate(), handler)) {
+				log("Falling back to the JSON parser for " + file);
+				return null;
+			}
+		} catch (ParseException e) {
+			// Our handler doesn't throw
+			throw new RuntimeException(e);
+		}
+		// The fingerprint covers the whole file, trailing whitespace too,
+		// and is where the pages actually get read, so report from here
+		ByteBuffer chunk = map.duplicate();
+		long total = map.capacity();
+		while (chunk.position() < total) {
+			chunk.limit((int) Math.min(total, chunk.position() + 16L * ProgressInputStream.STEP));
+			md.update(chunk);
+			if (null != listener) {
+				ProgressInputStream.checkInterrupted();
+				listener.read(chunk.position(), total);
+			}
+		}
+		return handler;
+	}
+
+	/**
+	 * With mapped loading on (the default), load() memory-maps local files
+	 * and parses them without going through a Reader, which is a lot quicker
+	 * for big files, especially on network filesystems.  Files it can't
+	 * handle that way still go through the JSON parser.
+	 */
+	public void setMappedLoad(boolean mappedLoad) {
+		this.mappedLoad = mappedLoad;
+	}
+
+	public boolean isMappedLoad() {
+		return mappedLoad;
+	}
+
+	/**
+	 * Gzip the body of save() to a URL.  Off by default, as the server has
+	 * to be set up to take a Content-Encoding on a request.
+	 */
+	public void setGzipUploads(boolean gzipUploads) {
+		this.gzipUploads = gzipUploads;
+	}
+
+	public boolean isGzipUploads() {
+		return gzipUploads;
+	}
+
+	/**
+	 * @return Where a journal that didn't match its backup was moved to
+	 * (see Journal.setAside()), or null if none has been since the last
+	 * call.  The user should be told, the edits in it have not been applied.
+	 */
+	public File takeSetAsideJournal() {
+		File taken = setAsideJournal;
+		setAsideJournal = null;
+		return taken;
+	}
+
+	private static MessageDigest newFingerprintDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (GeneralSecurityException e) {
+			// Every JRE has SHA-256
+			throw new RuntimeException(e);
 		}
-        // Loaded data has three attrs, 'db', 'salt' & 'schema_version'
-        salt = (String) obj.get("salt");
-        long dbSchemaVersion = (Long) obj.get("schema_version");
-        if (schemaVersion != dbSchemaVersion) {
-        	// TODO Handle other versions sanely
-        	throw new KeyringException("Incompatible schema version " + dbSchemaVersion);
-        }
-        cryptedDb = (String) obj.get("db");
 	}
 	
 	/**
 	 * Attempt to decrypt the loaded data with the supplied key.  If it parses,
 	 * the key is good, and loading is complete.  If not, it's a bad password.
+	 * 
+	 * The decrypted JSON is streamed straight into Items, without building
+	 * a JSONObject tree of the whole db first.
 	 * @throws GeneralSecurityException 
 	 */
-	@SuppressWarnings("unchecked")
-	private boolean decryptLoadedData() throws GeneralSecurityException {
+	private boolean decryptLoadedData(final LoadListener listener)
+			throws GeneralSecurityException, InterruptedException {
 		log("decryptLoadedData()");
-		JSONObject obj;
+		final BackupContentHandler handler = new BackupContentHandler(this);
+		ByteBuffer crypted = null;
 		try {
-			String decryptedJson = decrypt(cryptedDb);
-			obj = (JSONObject) parser.parse(decryptedJson);
+			/* Decrypt in place and parse straight from the bytes, so the
+			 * plaintext db never exists as a String. */
+			crypted = decodeBase64(cryptedDb);
+			ByteBuffer plain = decrypt(crypted, crypted);
+			final long total = plain.remaining();
+			InputStream in = new ByteArrayInputStream(
+					plain.array(), plain.arrayOffset() + plain.position(),
+					plain.remaining());
+			if (null != listener) {
+				ProgressInputStream.checkInterrupted();
+				in = new ProgressInputStream(in) {
+					void progress(long bytes) {
+						listener.parsed(bytes, total, handler.items.size());
+					}
+				};
+			}
+			getParser().parse(new InputStreamReader(in, UTF8), handler);
+			if (null != listener) {
+				listener.parsed(total, total, handler.items.size());
+			}
+		}
+		catch(InterruptedIOException e) {
+			throw new InterruptedException(e.getMessage());
+		}
+		catch(IOException e) {
+			// Can't happen with a ByteArrayInputStream
+			throw new RuntimeException(e);
 		}
 		catch(ParseException e) {
 			/* Can't parse decrypted data.  This is almost always due to a  
@@ -455,54 +1763,257 @@ public class Ring {
 			 * closing curly brace... */
 			return false;
 		}
+		catch(RuntimeException e) {
+			/* Parsed, but not shaped like a Keyring backup (wrong types,
+			 * non-numeric category ids).  Same story as above. */
+			return false;
+		}
+		finally {
+			// The whole plaintext db
+			if (null != crypted) {
+				Arrays.fill(crypted.array(), (byte) 0);
+			}
+		}
 		// Clear temp storage
 		cryptedDb = null;
 		log("Depot data loaded");
 
 		// We've got our data, pull it apart into usable pieces
 		// TODO What if the decrypted data isn't a Keyring backup?
-		Map<String, JSONObject> rawDb = (Map<String, JSONObject>) obj.get("db");
-		for (Map.Entry<String, JSONObject> ent : rawDb.entrySet()) {
-			String title = ent.getKey();
-			JSONObject rawItem = ent.getValue();
-			db.put(title, new Item(this, rawItem));
+		for (Map.Entry<String, Item> loaded : handler.items.entrySet()) {
+			dbPut(loaded.getKey(), loaded.getValue());
 		}
 		
-		// Handle categories
-		categoriesById = new HashMap<Integer, String>();
-		categoriesByName = new TreeMap<String, Integer>();
-		Object tmp = obj.get("categories");
-		if (null != tmp) {
-			Map<String, String> tmpCats = (Map<String, String>) tmp;
-			for (Map.Entry<String, String> cat : tmpCats.entrySet()) {
-				int id = Integer.parseInt(cat.getKey());
-				categoriesById.put(id, cat.getValue());
-				categoriesByName.put(cat.getValue(), id);
-			}
-		}
-		// make sure we always have the "all" and "unfiled" categories
-		setDefaultCategories();
+		setCategories(handler.categories);
 		
-		checkData = (String) ((JSONObject) obj.get("crypt")).get("checkData");
+		checkData = handler.checkData;
+		if (handler.sawEncryptedFields) {
+			fieldCrypto = true;
+		}
 
 		// For now, just stash prefs as a JSONObject
-		prefs = (JSONObject) obj.get("prefs");
+		prefs = handler.prefs;
 		
 		fullyLoaded = true;
 		
 		log("Depot data processed");
+		replayJournal();
 		return true;
 	}
 
-	private Writer getWriter(String outFile)
-	        throws IOException, GeneralSecurityException {
-		OutputStream os;
+	/**
+	 * Apply the changes journaled since the backup was written.  A journal
+	 * that belongs to another version of the backup, or can't be read, is
+	 * set aside (see Journal.setAside()) rather than lost.
+	 */
+	private void replayJournal() throws GeneralSecurityException {
+		if (null == baseFingerprint) {
+			return;
+		}
+		Journal found = new Journal(this, baseFile);
+		if (! found.exists()) {
+			return;
+		}
+		try {
+			List<JSONObject> records = found.read(baseFingerprint);
+			if (null == records) {
+				setAsideJournal = found.setAside();
+				return;
+			}
+			for (JSONObject record : records) {
+				applyJournalRecord(record);
+			}
+			journal = found;
+			log("Replayed " + records.size() + " journal records");
+		}
+		catch (Exception e) {
+			LOG.log(Level.SEVERE, "Couldn't replay " + found.getFile(), e);
+			try {
+				setAsideJournal = found.setAside();
+			} catch (IOException e2) {
+				LOG.log(Level.SEVERE, "Couldn't set aside " + found.getFile(), e2);
+			}
+		}
+	}
+
+	private void applyJournalRecord(JSONObject record) {
+		String op = (String) record.get("op");
+		String key = (String) record.get("key");
+		if ("put".equals(op)) {
+			Item item = new Item(this, (JSONObject) record.get("item"));
+			dbRemove(key);
+			dbPut(item.getTitle(), item);
+			JSONObject cats = (JSONObject) record.get("categories");
+			if (null != cats) {
+				Map<Integer, String> categories = new HashMap<Integer, String>();
+				for (Object cat : cats.entrySet()) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) cat;
+					categories.put(Integer.parseInt((String) entry.getKey()),
+							(String) entry.getValue());
+				}
+				setCategories(categories);
+			}
+		} else if ("remove".equals(op)) {
+			dbRemove(key);
+		} else {
+			throw new RuntimeException("Unknown journal record " + op);
+		}
+	}
+
+	/**
+	 * With journaling on, saveItem() and saveRemoval() append a record to
+	 * "<file>.journal" instead of rewriting the whole backup, as long as
+	 * they're saving to the local file the Ring was loaded from or last
+	 * saved to.  Every JOURNAL_COMPACT_RECORDS records, and on compact(),
+	 * the journal is folded back into the backup.
+	 * 
+	 * A journal found next to a backup is always replayed on load, whether
+	 * journaling is on or not.
+	 */
+	public synchronized void setJournaling(boolean journaling) {
+		this.journaling = journaling;
+	}
+
+	public synchronized boolean isJournaling() {
+		return journaling;
+	}
+
+	/**
+	 * @return Number of changes in the journal that aren't in the backup
+	 * file yet.
+	 */
+	public synchronized int getJournalRecordCount() {
+		return null == journal ? 0 : journal.getRecordCount();
+	}
+
+	/**
+	 * Save one added or changed Item, see setJournaling().
+	 */
+	public void saveItem(String outFile, Item item)
+			throws IOException, GeneralSecurityException {
+		saveChanges(outFile, Collections.singletonList(item),
+				Collections.<Item>emptyList());
+	}
+
+	/**
+	 * Save the removal of an Item, which has already been taken out of the
+	 * Ring with removeItem(), see setJournaling().
+	 */
+	public void saveRemoval(String outFile, Item item)
+			throws IOException, GeneralSecurityException {
+		saveChanges(outFile, Collections.<Item>emptyList(),
+				Collections.singletonList(item));
+	}
+
+	/**
+	 * Save a batch of added or changed Items and removals in one go: one
+	 * journal write, or one full save().
+	 *
+	 * The Ring's monitor is only held for the journal bookkeeping and the
+	 * append, never for a full save(), which the event dispatch thread would
+	 * otherwise wait on to rename an Item or add a category.  The Items are
+	 * serialized before taking it, as they lock themselves to do that, and
+	 * an Item being renamed holds its own monitor while it takes ours.
+	 */
+	@SuppressWarnings("unchecked")
+	public void saveChanges(String outFile, Collection<Item> saved,
+			Collection<Item> removed) throws IOException, GeneralSecurityException {
+		Map<Item, JSONAware> serialized = new IdentityHashMap<Item, JSONAware>();
+		for (Item item : saved) {
+			final String json = item.toJSONString();
+			serialized.put(item, new JSONAware() {
+				public String toJSONString() {
+					return json;
+				}
+			});
+		}
+		boolean full;
+		synchronized (this) {
+			full = ! canJournal(outFile);
+			if (! full) {
+				List<JSONObject> records = new ArrayList<JSONObject>();
+				for (Item item : removed) {
+					String key = retitled.get(item);
+					JSONObject record = new JSONObject();
+					record.put("op", "remove");
+					record.put("key", null == key ? item.getTitle() : key);
+					records.add(record);
+				}
+				for (Item item : saved) {
+					String key = retitled.get(item);
+					JSONObject record = new JSONObject();
+					record.put("op", "put");
+					record.put("key", null == key ? item.getTitle() : key);
+					record.put("item", serialized.get(item));
+					record.put("categories", categoriesById);
+					records.add(record);
+				}
+				if (null == journal) {
+					Journal created = new Journal(this, outFile);
+					if (created.exists()) {
+						// Not ours, we'd have replayed it
+						setAsideJournal = created.setAside();
+					}
+					created.create(baseFingerprint);
+					journal = created;
+				}
+				journal.append(records);
+				for (Item item : removed) {
+					retitled.remove(item);
+				}
+				for (Item item : saved) {
+					retitled.remove(item);
+				}
+				if (journal.getRecordCount() < JOURNAL_COMPACT_RECORDS) {
+					return;
+				}
+			}
+		}
+		if (full) {
+			save(outFile);
+		} else {
+			compact(outFile);
+		}
+	}
+
+	/**
+	 * Fold the journal into outFile, i.e. a full save().
+	 */
+	public void compact(String outFile) throws IOException, GeneralSecurityException {
+		save(outFile);
+	}
+
+	/**
+	 * @return True if changes to outFile can go in a journal.
+	 */
+	private boolean canJournal(String outFile) {
+		return journaling && null != baseFingerprint && outFile.equals(baseFile);
+	}
+
+	/**
+	 * Keep the db keyed by title when an Item is renamed.
+	 */
+	synchronized void itemRetitled(Item item, String oldTitle) {
+		if (db.get(oldTitle) == item) {
+			db.remove(oldTitle);
+			dbPut(item.getTitle(), item);
+			if (! retitled.containsKey(item)) {
+				retitled.put(item, oldTitle);
+			}
+		}
+	}
+
+	private OutputStream getOutputStream(String outFile) throws IOException {
 		if (outFile.equals("-")) {
-			os = System.out;
+			return System.out;
 		} else {
-			os = new FileOutputStream(new File(outFile));
+			return new BufferedOutputStream(new FileOutputStream(new File(outFile)));
 		}
-		OutputStreamWriter writer = new OutputStreamWriter(os, "UTF-8");
+	}
+
+	private Writer getWriter(String outFile)
+	        throws IOException, GeneralSecurityException {
+		OutputStreamWriter writer = new OutputStreamWriter(getOutputStream(outFile), "UTF-8");
 		return writer;
 	}
 	
@@ -516,6 +2027,16 @@ public class Ring {
 		}
 	}
 	
+	private void closeOutputStream(OutputStream os, String outFile)
+	        throws IOException {
+		if (outFile.equals("-")) {
+			os.write('\n');
+			os.flush();
+		} else {
+			os.close();
+		}
+	}
+	
 	/**
 	 * Return ISO date representation of the epoch time
 	 * 
@@ -536,7 +2057,10 @@ public class Ring {
 	/**
 	 * Export data to the specified file.
 	 * 
-	 * @param outFile Path to the output file
+	 * A URL is sent the backup as the "data" field of a multipart/form-data
+	 * POST, and has to answer "OK".
+	 * 
+	 * @param outFile Path to the output file, a URL, or "-" for stdout
 	 * @throws IOException
 	 * @throws GeneralSecurityException
 	 */
@@ -544,45 +2068,218 @@ public class Ring {
         	throws IOException, GeneralSecurityException {
 		log("save(" + outFile + ")");
 		if (outFile.startsWith("http")) {
-			URL url = new URL(outFile);
-			URLConnection urlConn = url.openConnection(); 
-		    urlConn.setDoInput(true); 
-		    urlConn.setDoOutput(true); 
-		    urlConn.setUseCaches(false); 
-		    urlConn.setRequestProperty ("Content-Type", "application/x-www-form-urlencoded");
-
-		    DataOutputStream dos = new DataOutputStream (urlConn.getOutputStream()); 
-		    String message = "data=" + URLEncoder.encode(getExportData().toJSONString(), "UTF-8");
-		    dos.writeBytes(message); 
-		    dos.flush(); 
-		    dos.close();
-
-		    // the server responds by saying 
-		    // "OK" or "ERROR: blah blah"
-
-		    BufferedReader br = new BufferedReader(new InputStreamReader(urlConn.getInputStream())); 
-		    String s = br.readLine(); 
-		    if (! s.equals("OK")) {
-		    	StringBuilder sb = new StringBuilder();
-		    	sb.append("Failed to save to URL '");
-		    	sb.append(url);
-		    	sb.append("': ");
-		    	while ((s = br.readLine()) != null) {
-		    		sb.append(s);
-		    	}
-		    	throw new IOException(sb.toString());
-		    }
-		    br.close(); 
+			HttpTransport.Upload upload =
+				HttpTransport.getDefault().post(outFile, "data", gzipUploads);
+			String reply = null;
+			try {
+				writeExportData(upload);
+				reply = upload.finish();
+			} finally {
+				if (null == reply) {
+					upload.abort(new IOException("Save to " + outFile + " failed"));
+				}
+			}
+			// the server responds by saying
+			// "OK" or "ERROR: blah blah"
+			if (! reply.trim().equals("OK")) {
+				throw new IOException("Failed to save to URL '" + outFile + "': " +
+						reply.trim().replaceAll("\\s*\\n\\s*", " "));
+			}
+		} else if (outFile.equals("-")) {
+			OutputStream os = getOutputStream(outFile);
+			writeExportData(os);
+			closeOutputStream(os, outFile);
 		} else {
-			Writer writer = getWriter(outFile);
-			getExportData().writeJSONString(writer);
-			closeWriter(writer, outFile);
+			MessageDigest md = newFingerprintDigest();
+			if (atomicSave) {
+				saveAtomically(outFile, md);
+			} else {
+				OutputStream os = new DigestOutputStream(getOutputStream(outFile), md);
+				writeExportData(os);
+				closeOutputStream(os, outFile);
+			}
+			synchronized (this) {
+				// The backup now has everything, the journal is obsolete
+				if (null != journal) {
+					journal.delete();
+					journal = null;
+				}
+				retitled.clear();
+				baseFile = outFile;
+				baseFingerprint = Base64Codec.encodeUnpadded(md.digest());
+			}
 		}
 	}
 	
+	/**
+	 * As save(), on the common pool.
+	 */
+	public CompletableFuture<Void> saveAsync(final String outFile) {
+		return CompletableFuture.runAsync(new Runnable() {
+			public void run() {
+				try {
+					save(outFile);
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * With atomic saves on (the default), save() writes a local file by way
+	 * of a temporary file in the same directory, which is forced to disk and
+	 * then renamed over the original.  A crash part way through leaves the
+	 * old file intact.  Off, the file is truncated and written in place.
+	 */
+	public void setAtomicSave(boolean atomicSave) {
+		this.atomicSave = atomicSave;
+	}
+
+	public boolean isAtomicSave() {
+		return atomicSave;
+	}
+
+	/**
+	 * Keep this many previous versions of a file replaced by an atomic save,
+	 * as "<file>.1" (the newest) through "<file>.N".  0, the default, keeps
+	 * none.
+	 */
+	public void setBackupCount(int backupCount) {
+		this.backupCount = backupCount;
+	}
+
+	public int getBackupCount() {
+		return backupCount;
+	}
+
+	private void saveAtomically(String outFile, MessageDigest md)
+			throws IOException, GeneralSecurityException {
+		Path target = Paths.get(outFile).toAbsolutePath();
+		Path dir = target.getParent();
+		Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+		Path previous = null;
+		boolean moved = false;
+		try {
+			FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+			try {
+				OutputStream os = new DigestOutputStream(new BufferedOutputStream(
+						Channels.newOutputStream(channel)), md);
+				writeExportData(os);
+				os.flush();
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+			if (Files.exists(target)) {
+				copyPermissions(target, temp);
+				if (backupCount > 0) {
+					previous = keepPrevious(target, temp);
+				}
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				LOG.warning("Atomic rename not supported for " + target + ", replacing it");
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			moved = true;
+			if (null != previous) {
+				try {
+					rotateBackups(target, previous);
+				} catch (IOException e) {
+					// The save itself worked, and the old contents are still there
+					LOG.log(Level.SEVERE, "Couldn't rotate backups of " + target +
+							", the previous version is in " + previous, e);
+				}
+				previous = null;
+			}
+			forceDirectory(dir);
+		} finally {
+			if (! moved) {
+				Files.deleteIfExists(temp);
+				if (null != previous) {
+					Files.deleteIfExists(previous);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Give the new file the old one's permissions, where the filesystem has
+	 * them.  Temp files are created owner-only.
+	 */
+	private static void copyPermissions(Path from, Path to) {
+		try {
+			Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+		} catch (UnsupportedOperationException e) {
+			// Not POSIX, nothing to copy
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Couldn't copy permissions of " + from, e);
+		}
+	}
+
+	/**
+	 * Hold on to the current file under a name next to temp, until the new
+	 * one is in place and rotateBackups() can make it file.1.  A hard link
+	 * is enough for that, since the rename that follows leaves the old
+	 * contents alone; filesystems without links get a copy.
+	 */
+	private static Path keepPrevious(Path target, Path temp) throws IOException {
+		Path previous = temp.resolveSibling(temp.getFileName() + ".prev");
+		try {
+			Files.createLink(previous, target);
+		} catch (IOException e) {
+			Files.copy(target, previous);
+		} catch (UnsupportedOperationException e) {
+			Files.copy(target, previous);
+		}
+		return previous;
+	}
+
+	/**
+	 * Shift file.1 .. file.N-1 up by one and make previous file.1.  Only
+	 * done once the new file has replaced the old, so a failed save leaves
+	 * the backups as they were.
+	 */
+	private void rotateBackups(Path target, Path previous) throws IOException {
+		String name = target.getFileName().toString();
+		for (int i = backupCount - 1; i >= 1; i--) {
+			Path older = target.resolveSibling(name + "." + i);
+			if (Files.exists(older)) {
+				Files.move(older, target.resolveSibling(name + "." + (i + 1)),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		Files.move(previous, target.resolveSibling(name + ".1"),
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Make the rename itself durable.  Not every platform lets us open a
+	 * directory, in which case there's nothing more we can do.
+	 */
+	private static void forceDirectory(Path dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Couldn't sync directory " + dir, e);
+		}
+	}
+
 	public void exportToCSV(String outFile)
 	        throws IOException, GeneralSecurityException, KeyringException {
 		log("exportToCSV(" + outFile + ")");
+		if (null == plaintextCache) {
+			unlockAll();
+		}
+		// Otherwise the Items unlock one by one below, and the cache re-locks them
 		Writer writer = getWriter(outFile);
 		CSVPrinter csv = new CSVPrinter(writer);
 		csv.writeln(new String[] {"title", "username", "password", "url",
@@ -601,7 +2298,12 @@ public class Ring {
 		closeWriter(writer, outFile);
 	}
 	
+	/**
+	 * Log a message about a whole-Ring operation.  Per-item crypto calls
+	 * log at FINEST instead, and are counted by getEncryptCount() and
+	 * getDecryptCount().
+	 */
 	private void log(String message) {
-		System.err.println(message);
+		LOG.fine(message);
 	}
 }
@@ -0,0 +1,532 @@
+/**
+ * @author Dirk Bergstrom
+ *
+ * Keyring for webOS - Easy password management on your phone.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.otisbean.keyring;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * In-memory inverted index over the title, username, url and notes of a
+ * Ring's Items, for Ring.search().
+ *
+ * Text is split into lower case words of letters and digits.  Each word is
+ * indexed as a whole, by every one of its prefixes, and, if it's at least
+ * FUZZY_MIN long, by each of the variants with one character deleted,
+ * tagged with the position of the deletion.  A search word then matches
+ * exactly, as a prefix, or with one typo (a missing, extra, wrong or
+ * swapped character) by looking up a few keys per character, whatever the
+ * size of the Ring.
+ *
+ * The keys aren't the words themselves but SipHash-2-4 values of them,
+ * under a random key made for each index, so the plaintext isn't kept
+ * around in the index, let alone written anywhere.  The index lives and
+ * dies with the Ring (and its password, see Ring.clearKeyCache()).
+ *
+ * Items are numbered as they're indexed, and each key maps to the list of
+ * numbers of the Items that have it, in ascending order.  An Item that
+ * changes gets a new number, and its old one is simply marked dead, to be
+ * dropped from the lists when the dead outnumber the living.
+ *
+ * Edits only queue the Item (see changed()), because the new plaintext
+ * isn't readable until the setter is done; the queue is worked off by the
+ * next search.  Plaintext is read without holding our monitor, so the
+ * Item monitors are never taken inside it.
+ *
+ * @author Dirk Bergstrom
+ */
+class SearchIndex {
+
+	/**
+	 * Words are cut off at this length.
+	 */
+	static final int MAX_WORD = 32;
+	/**
+	 * Shortest search word that's fuzzy matched.  Below that, one typo
+	 * matches too much to be useful.
+	 */
+	static final int FUZZY_MIN = 4;
+
+	private static final int EXACT = 3;
+	private static final int PREFIX = 2;
+	private static final int FUZZY = 1;
+
+	private static final int WORD = 'W';
+	private static final int PREFIX_OF = 'P';
+	/**
+	 * Plus the position of the deleted character, which can't reach the
+	 * other tags.
+	 */
+	private static final int DELETION = 0x4400;
+
+	/**
+	 * A growable list of Item numbers.
+	 */
+	private static class Postings {
+		int[] ids = new int[2];
+		int size;
+
+		void add(int id) {
+			// An Item can produce the same key more than once
+			if (size > 0 && ids[size - 1] == id) {
+				return;
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+	}
+
+	private final Ring ring;
+	private final long k0;
+	private final long k1;
+
+	// Guarded by this
+	private final Map<Long, Postings> postings = new HashMap<Long, Postings>();
+	private final List<Item> items = new ArrayList<Item>();
+	private final Map<Item, Integer> numbers = new IdentityHashMap<Item, Integer>();
+	private int dead;
+
+	private final ConcurrentLinkedQueue<Item> stale = new ConcurrentLinkedQueue<Item>();
+
+	SearchIndex(Ring ring) {
+		this.ring = ring;
+		SecureRandom random = new SecureRandom();
+		k0 = random.nextLong();
+		k1 = random.nextLong();
+	}
+
+	/**
+	 * Index an Item.  Safe to call from several threads at once, the
+	 * decryption and hashing happen outside our monitor.
+	 */
+	void add(Item item) throws GeneralSecurityException, KeyringException {
+		put(item, keysOf(item));
+	}
+
+	/**
+	 * Note that an Item's text has changed, or that it's been added.
+	 */
+	void changed(Item item) {
+		stale.add(item);
+	}
+
+	synchronized void removed(Item item) {
+		Integer number = numbers.remove(item);
+		if (null != number) {
+			items.set(number, null);
+			dead++;
+		}
+	}
+
+	/**
+	 * @param query Words to look for, all of which must match.
+	 * @param max Most Items to return, 0 for all of them.
+	 * @return The matches, best first: exact word matches beat prefixes,
+	 * which beat typos.  Ties are sorted by title.
+	 */
+	List<Item> search(String query, int max)
+			throws GeneralSecurityException, KeyringException {
+		refresh();
+		List<String> words = words(query);
+		if (words.isEmpty()) {
+			return new ArrayList<Item>();
+		}
+		synchronized (this) {
+			List<Hits> hits = new ArrayList<Hits>();
+			for (String word : words) {
+				hits.add(lookup(word));
+			}
+			// Start from the rarest word, and only check its matches
+			// against the others
+			Collections.sort(hits);
+			final int[] scores = new int[items.size()];
+			// With one word, lesser matches can't make the cut once there
+			// are max better ones
+			int[] found = hits.get(0).collect(scores,
+					hits.size() == 1 && max > 0 ? max : Integer.MAX_VALUE);
+			int count = found.length;
+			for (Hits more : hits.subList(1, hits.size())) {
+				int kept = 0;
+				for (int i = 0; i < count; i++) {
+					int score = more.score(found[i]);
+					// Every word has to match
+					if (score > 0) {
+						scores[found[i]] += score;
+						found[kept++] = found[i];
+					}
+				}
+				count = kept;
+			}
+			Comparator<Integer> best = new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int diff = scores[b] - scores[a];
+					return diff != 0 ? diff : items.get(a).compareTo(items.get(b));
+				}
+			};
+			List<Integer> ranked;
+			if (max > 0 && count > max) {
+				// Keep the best max, the worst of them on top
+				PriorityQueue<Integer> top = new PriorityQueue<Integer>(max + 1,
+						Collections.reverseOrder(best));
+				for (int i = 0; i < count; i++) {
+					if (top.size() == max && best.compare(found[i], top.peek()) >= 0) {
+						continue;
+					}
+					top.add(found[i]);
+					if (top.size() > max) {
+						top.poll();
+					}
+				}
+				ranked = new ArrayList<Integer>(top);
+			} else {
+				ranked = new ArrayList<Integer>(count);
+				for (int i = 0; i < count; i++) {
+					ranked.add(found[i]);
+				}
+			}
+			Collections.sort(ranked, best);
+			List<Item> result = new ArrayList<Item>(ranked.size());
+			for (int number : ranked) {
+				result.add(items.get(number));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Reindex the Items queued by changed().
+	 */
+	private void refresh() throws GeneralSecurityException, KeyringException {
+		if (stale.isEmpty()) {
+			return;
+		}
+		Set<Item> todo = Collections.newSetFromMap(new IdentityHashMap<Item, Boolean>());
+		Item item;
+		while (null != (item = stale.poll())) {
+			todo.add(item);
+		}
+		for (Item changed : todo) {
+			if (isInRing(changed)) {
+				put(changed, keysOf(changed));
+			} else {
+				removed(changed);
+			}
+		}
+	}
+
+	private boolean isInRing(Item item) {
+		return ring.getItem(item.getTitle()) == item;
+	}
+
+	private synchronized void put(Item item, long[] keys) {
+		removed(item);
+		// Removed while we were reading it
+		if (! isInRing(item)) {
+			return;
+		}
+		int number = items.size();
+		items.add(item);
+		numbers.put(item, number);
+		for (long key : keys) {
+			Postings list = postings.get(key);
+			if (null == list) {
+				list = new Postings();
+				postings.put(key, list);
+			}
+			list.add(number);
+		}
+		if (dead > 1024 && dead > numbers.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Renumber the live Items, and drop the dead ones from the lists.
+	 */
+	private void compact() {
+		int[] renumber = new int[items.size()];
+		List<Item> live = new ArrayList<Item>(numbers.size());
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+			if (null == item) {
+				renumber[i] = -1;
+			} else {
+				renumber[i] = live.size();
+				numbers.put(item, live.size());
+				live.add(item);
+			}
+		}
+		Iterator<Postings> lists = postings.values().iterator();
+		while (lists.hasNext()) {
+			Postings list = lists.next();
+			int size = 0;
+			for (int i = 0; i < list.size; i++) {
+				int number = renumber[list.ids[i]];
+				if (number >= 0) {
+					list.ids[size++] = number;
+				}
+			}
+			list.size = size;
+			if (0 == size) {
+				lists.remove();
+			}
+		}
+		items.clear();
+		items.addAll(live);
+		dead = 0;
+	}
+
+	/**
+	 * The lists a search word hits, and what each is worth.
+	 */
+	private class Hits implements Comparable<Hits> {
+		final List<Postings> lists = new ArrayList<Postings>();
+		final List<Integer> worth = new ArrayList<Integer>();
+		int size;
+
+		void add(long key, int score) {
+			Postings list = postings.get(key);
+			if (null != list) {
+				lists.add(list);
+				worth.add(score);
+				size += list.size;
+			}
+		}
+
+		/**
+		 * Record the best score of each live Item hit in scores.  The lists
+		 * are added best first, so they're read that way.
+		 *
+		 * @param enough Stop before moving on to lesser matches once this
+		 * many Items have been hit.
+		 * @return The numbers of the Items hit.
+		 */
+		int[] collect(int[] scores, int enough) {
+			int[] found = new int[Math.min(size, scores.length)];
+			int count = 0;
+			for (int l = 0; l < lists.size(); l++) {
+				Postings list = lists.get(l);
+				int score = worth.get(l);
+				if (count >= enough && score < worth.get(l - 1)) {
+					break;
+				}
+				for (int i = 0; i < list.size; i++) {
+					int number = list.ids[i];
+					if (null == items.get(number)) {
+						continue;
+					}
+					if (0 == scores[number]) {
+						found[count++] = number;
+					}
+					if (scores[number] < score) {
+						scores[number] = score;
+					}
+				}
+			}
+			return Arrays.copyOf(found, count);
+		}
+
+		/**
+		 * @return The best score for one Item, 0 if it isn't hit.
+		 */
+		int score(int number) {
+			int best = 0;
+			for (int l = 0; l < lists.size(); l++) {
+				int score = worth.get(l);
+				Postings list = lists.get(l);
+				if (score > best && Arrays.binarySearch(list.ids, 0, list.size, number) >= 0) {
+					best = score;
+				}
+			}
+			return best;
+		}
+
+		public int compareTo(Hits other) {
+			return size < other.size ? -1 : (size == other.size ? 0 : 1);
+		}
+	}
+
+	private Hits lookup(String word) {
+		Hits hits = new Hits();
+		int len = word.length();
+		hits.add(hash(WORD, word, len, -1), EXACT);
+		hits.add(hash(PREFIX_OF, word, len, -1), PREFIX);
+		if (len >= FUZZY_MIN) {
+			for (int skip = 0; skip <= len; skip++) {
+				// A character too few, the word is a deletion of the Item's
+				hits.add(hash(DELETION + skip, word, len, -1), FUZZY);
+			}
+			for (int skip = 0; skip < len; skip++) {
+				// A character too many
+				hits.add(hash(WORD, word, len, skip), FUZZY);
+				// A wrong character, same deletion in the same place
+				hits.add(hash(DELETION + skip, word, len, skip), FUZZY);
+				if (skip > 0) {
+					// Swapped with the one before, same deletion one place over
+					hits.add(hash(DELETION + skip - 1, word, len, skip), FUZZY);
+				}
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Read an Item's text and turn it into index keys.  A locked Item is
+	 * left locked; thanks to Item's dirty tracking, that costs no
+	 * encryption.
+	 */
+	private long[] keysOf(Item item) throws GeneralSecurityException, KeyringException {
+		List<String> words;
+		synchronized (item) {
+			boolean wasLocked = item.isLocked();
+			StringBuilder text = new StringBuilder();
+			text.append(item.getTitle()).append(' ');
+			text.append(item.getUsername()).append(' ');
+			text.append(item.getUrl()).append(' ');
+			text.append(item.getNotes());
+			if (wasLocked && ! item.isLocked()) {
+				item.lock();
+			}
+			words = words(text);
+			// Wipe what we can
+			text.setLength(0);
+			text.trimToSize();
+		}
+		long[] keys = new long[16];
+		int count = 0;
+		for (String word : words) {
+			int len = word.length();
+			int needed = 1 + len + (len >= FUZZY_MIN ? len : 0);
+			if (count + needed > keys.length) {
+				keys = Arrays.copyOf(keys, Math.max(keys.length * 2, count + needed));
+			}
+			keys[count++] = hash(WORD, word, len, -1);
+			for (int end = 1; end <= len; end++) {
+				keys[count++] = hash(PREFIX_OF, word, end, -1);
+			}
+			if (len >= FUZZY_MIN) {
+				for (int skip = 0; skip < len; skip++) {
+					keys[count++] = hash(DELETION + skip, word, len, skip);
+				}
+			}
+		}
+		return keys.length == count ? keys : Arrays.copyOf(keys, count);
+	}
+
+	/**
+	 * Split text into lower case words of letters and digits, each cut
+	 * off at MAX_WORD.  "null" from an unset attribute is indexed, which
+	 * does no harm.
+	 */
+	static List<String> words(CharSequence text) {
+		List<String> words = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (inWord && start < 0) {
+				start = i;
+			} else if (! inWord && start >= 0) {
+				String word = text.subSequence(start,
+						Math.min(i, start + MAX_WORD)).toString();
+				words.add(word.toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * SipHash state.
+	 */
+	private static class Sip {
+		long v0;
+		long v1;
+		long v2;
+		long v3;
+
+		Sip(long k0, long k1) {
+			v0 = k0 ^ 0x736f6d6570736575L;
+			v1 = k1 ^ 0x646f72616e646f6dL;
+			v2 = k0 ^ 0x6c7967656e657261L;
+			v3 = k1 ^ 0x7465646279746573L;
+		}
+
+		void rounds(int n) {
+			for (int r = 0; r < n; r++) {
+				v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+				v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+				v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+				v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+			}
+		}
+
+		void compress(long m) {
+			v3 ^= m;
+			rounds(2);
+			v0 ^= m;
+		}
+
+		long finish() {
+			v2 ^= 0xff;
+			rounds(4);
+			return v0 ^ v1 ^ v2 ^ v3;
+		}
+	}
+
+	/**
+	 * SipHash-2-4 of the 16 bit tag followed by the first len characters of word,
+	 * leaving out the one at skip (-1 for none), four chars to a block.
+	 */
+	private long hash(int tag, String word, int len, int skip) {
+		Sip sip = new Sip(k0, k1);
+		long m = tag & 0xffff;
+		int chars = 1;
+		int total = 1;
+		for (int i = 0; i < len; i++) {
+			if (i == skip) {
+				continue;
+			}
+			m |= ((long) word.charAt(i)) << (16 * chars);
+			total++;
+			if (++chars == 4) {
+				sip.compress(m);
+				m = 0;
+				chars = 0;
+			}
+		}
+		// At most three chars left, the length goes in the top 16 bits
+		sip.compress(m | ((long) (total & 0xffff)) << 48);
+		return sip.finish();
+	}
+}
@@ -28,22 +28,28 @@ package com.otisbean.keyring.gui;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
 
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenuBar;
 import javax.swing.JOptionPane;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JSplitPane;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
-import javax.swing.event.TreeSelectionEvent;
-import javax.swing.event.TreeSelectionListener;
-import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 
 import com.otisbean.keyring.Item;
 import com.otisbean.keyring.Ring;
@@ -74,7 +80,25 @@ public class Editor extends Gui {
 
 	private Ring ring;
 	private JFrame frame;
-	private PasswordTimeoutWorker timeoutThread;
+	/**
+	 * Locks the Ring after PASSWORD_TIMEOUT of inactivity.
+	 */
+	private LockScheduler lockScheduler;
+
+	/**
+	 * Writes item changes off the event dispatch thread.
+	 */
+	private final SaveScheduler saver = new SaveScheduler(new SaveScheduler.Listener() {
+		public void saved(String filename, int changes) {
+			frame.setTitle(FRAMETITLE + ": " + filename + " (saved " +
+					new SimpleDateFormat("HH:mm:ss").format(new Date()) + ")");
+			reportSetAside();
+		}
+
+		public void saveFailed(String filename, Exception e) {
+			msgError(e, "Could not save entries to " + filename, false);
+		}
+	});
 
 	// flags
 	/**
@@ -107,6 +131,12 @@ public class Editor extends Gui {
 
 		myEditor.frame = new JFrame(FRAMETITLE);
 		myEditor.frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		final Editor closingEditor = myEditor;
+		myEditor.frame.addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent we) {
+				closingEditor.closeDatabase();
+			}
+		});
 
 		// check command line parameters
 		if(argv.length > 1) {
@@ -250,6 +280,11 @@ public class Editor extends Gui {
 		aboutMenuItem.addActionListener(new AboutListener(this));
 		importMenuItem.addActionListener(new ImportListener(this));
 		newMenuItem.addActionListener(new newListener(this));
+		SortListener sortListener = new SortListener(this);
+		for (JRadioButtonMenuItem sortMenuItem : sortMenuItems) {
+			sortMenuItem.addActionListener(sortListener);
+		}
+		reverseMenuItem.addActionListener(sortListener);
 
 		// itemPane Listener
 		currentCategory.addActionListener(new currentCategorySelectionListener(this));
@@ -263,7 +298,12 @@ public class Editor extends Gui {
 
 		// itemListPane Listener
 		categoryList.addActionListener(new CategorySelectionListener(this));
-		dynTree.getTree().addTreeSelectionListener(new treeSelectionListener(this));
+		itemList.addListSelectionListener(new itemSelectionListener(this));
+		SortOrderListener sortOrderListener = new SortOrderListener(this);
+		itemList.addPropertyChangeListener("sortOrder", sortOrderListener);
+		itemList.addPropertyChangeListener("descending", sortOrderListener);
+		itemList.setSortOrder(SORT_ORDER, false);
+		showSortOrder();
 
 		// buttonPane Listener
 		newItem.addActionListener(new newItemListener(this));
@@ -278,8 +318,11 @@ public class Editor extends Gui {
 		toggleButtonsAndFields(false, false);
 
 		// Passwort Timeout
-		timeoutThread = new PasswordTimeoutWorker(this);
-		new Thread(timeoutThread).start();
+		lockScheduler = new LockScheduler(PASSWORD_TIMEOUT, saver, new LockScheduler.Listener() {
+			public void timedOut() {
+				lockEditor();
+			}
+		});
 
 		// load Database
 		loadDatabase(dbFilename);
@@ -292,11 +335,27 @@ public class Editor extends Gui {
 	 * @param dbFilename Keyring database or null
 	 */
 	private void loadDatabase(String filename) throws Exception {
+		closeDatabase();
 		ring = null;
 		if (null != filename) {
 			ring = new Ring();
+			if (FIELD_CRYPTO) {
+				ring.setFieldCrypto(true);
+			}
+			ring.setJournaling(JOURNAL);
+			ring.setBackupCount(BACKUP_COUNT);
+			ring.setMappedLoad(MAPPED_LOAD);
 			try {
-				ring.load(filename);
+				// Off the event thread, URLs especially can take a while
+				final Ring loading = ring;
+				final String loadFile = filename;
+				new ProgressDialog(frame, "Opening " + filename).run(
+						new ProgressDialog.Task<Void>() {
+					public Void run(ProgressDialog progress) throws Exception {
+						loading.load(loadFile, new LoadProgress(progress));
+						return null;
+					}
+				});
 
 				dbFilename = filename;
 				/* We only set previousDirectory if dbFilename has a directory,
@@ -306,6 +365,10 @@ public class Editor extends Gui {
 					previousDirectory = tmpPreviousDirectory;
 				}
 			}
+			catch(CancellationException ex) {
+				loadDatabase(null);
+				return;
+			}
 			catch(Exception ex) {
 				msgError(ex, "Open keyring database", false);
 
@@ -326,6 +389,27 @@ public class Editor extends Gui {
 		initEditorState(null != ring);
 	}
 
+	// closeDatabase -------------------------------------------------
+	/**
+	 * Write out pending changes, and fold any journaled changes into the
+	 * database file, before it's closed.
+	 */
+	private void closeDatabase() {
+		saver.flush();
+		if (null != ring && ring.getJournalRecordCount() > 0) {
+			try {
+				ring.compact(dbFilename);
+			}
+			catch(Exception e) {
+				// The journal is still there, and gets replayed next time
+				msgError(e, "Could not save entries to " + dbFilename, false);
+			}
+		}
+		if (null != lockScheduler) {
+			lockScheduler.lock();
+		}
+	}
+
 	/**
 	 * Set state of buttons, menus, etc. according to presence of Ring & dbFilename.
 	 */
@@ -334,11 +418,11 @@ public class Editor extends Gui {
 		if (dbLoaded) {
 			title = FRAMETITLE + ": " + null == dbFilename ? "UNSAVED" : dbFilename;
 			setupCategories(ring.getCategories());
-			dynTree.populate();
+			itemList.populate();
 		} else {
 			title = FRAMETITLE;
 			setupCategories(null);
-			dynTree.clear();
+			itemList.clear();
 		}
 		frame.setTitle(title);
 		// Menu bar items
@@ -424,24 +508,37 @@ public class Editor extends Gui {
 	 * @return False if dialog cancelled (Boolean)
 	 */
 	private boolean checkPassword() {
-		char[] password = getPasswordFromDialog();
+		final char[] password = getPasswordFromDialog();
 		if (null == password) {
 			return false;
 		}
 		boolean retval;
 		try {
-			if (ring.validatePassword(password)) {
-				timeoutThread.restartTimeout();
+			// The first time, this decrypts the whole database
+			final Ring checking = ring;
+			boolean valid = new ProgressDialog(frame, "Unlocking " + dbFilename).run(
+					new ProgressDialog.Task<Boolean>() {
+				public Boolean run(ProgressDialog progress) throws Exception {
+					return checking.validatePassword(password, new LoadProgress(progress));
+				}
+			});
+			if (valid) {
+				lockScheduler.unlocked(ring);
+				reportSetAside();
 				retval = true;
 			} else {
 				msgInformation("Invalid Password");
-				timeoutThread.setTimeout(); // timed out
+				lockScheduler.lock();
 				retval = false;
 			}
 		}
+		catch(CancellationException e) {
+			lockScheduler.lock();
+			retval = false;
+		}
 		catch(Exception e) {
 			msgError(e, "Error processing password", false);
-			timeoutThread.setTimeout(); // timed out
+			lockScheduler.lock();
 			retval = false;
 		}
 		// Erase password from memory
@@ -449,6 +546,43 @@ public class Editor extends Gui {
 		return retval;
 	}
 
+	/**
+	 * Tell the user about a journal the Ring had to set aside, since the
+	 * edits in it weren't applied.
+	 */
+	private void reportSetAside() {
+		File stale = ring.takeSetAsideJournal();
+		if (null != stale) {
+			msgInformation("Unsaved changes didn't match " + dbFilename +
+					" and were not applied.\nThey have been kept in " + stale);
+		}
+	}
+
+	/**
+	 * Shows the progress of opening a database in a ProgressDialog.
+	 */
+	private static class LoadProgress implements Ring.LoadListener {
+		private final ProgressDialog progress;
+
+		LoadProgress(ProgressDialog progress) {
+			this.progress = progress;
+		}
+
+		public void read(long bytes, long total) {
+			progress.setProgress(bytes, total, total > 0
+					? "Reading " + megabytes(bytes) + " of " + megabytes(total)
+					: "Reading " + megabytes(bytes));
+		}
+
+		public void parsed(long bytes, long total, int items) {
+			progress.setProgress(bytes, total, "Decrypting, " + items + " items");
+		}
+
+		private static String megabytes(long bytes) {
+			return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+		}
+	}
+
 	/**
 	 * Show password dialog.
 	 *
@@ -467,35 +601,28 @@ public class Editor extends Gui {
 	 * Show item and check password timeout.
 	 */
 	private void showItem() {
-		DefaultMutableTreeNode node = dynTree.getLastNode();
+		Item item = itemList.getSelectedItem();
 
 		if (locked == true || null == ring) {
 			return;
 		}
 
 		try {
-			Date ende = timeoutThread.getEndDate();
-			if (null == ende) {
+			if (lockScheduler.isLocked()) {
 				// timed out
-				clearItem();
-				setBtnLock(true, true);
-				toggleButtonsAndFields(false, false);
+				lockEditor();
 				return;
 			} else {
-				timeoutThread.restartTimeout();
+				lockScheduler.activity();
 			}
 
-			if(node == null || !(node.isLeaf()) || node.isRoot()) {
+			if(item == null) {
 				// no item
 				clearItem();
 				toggleButtonsAndFields(false, true);
 				return;
 			}
 
-			Object nodeInfo = node.getUserObject();
-
-			Item item = (Item) nodeInfo;
-
 			// set text fields according to item
 			// if categoryname was deleted, show first category "no category"
 			if (currentCategory.getItemCount() > item.getCategoryId()) {
@@ -530,6 +657,27 @@ public class Editor extends Gui {
 		}
 	}
 
+	/**
+	 * Check the View menu's entries for the item list's sort order.
+	 */
+	private void showSortOrder() {
+		for (int i = 0; i < ItemList.ORDERS.length; i++) {
+			if (ItemList.ORDERS[i] == itemList.getSortOrder()) {
+				sortMenuItems[i].setSelected(true);
+			}
+		}
+		reverseMenuItem.setSelected(itemList.isDescending());
+	}
+
+	/**
+	 * Lock the application, and clear the item shown.
+	 */
+	private void lockEditor() {
+		setBtnLock(true, true);
+		toggleButtonsAndFields(false, false);
+		clearItem();
+	}
+
 	/**
 	 * Clear item text fields.
 	 */
@@ -552,6 +700,9 @@ public class Editor extends Gui {
 	 * textFieldChanged flag.
 	 */
 	private void noticeFieldChange() {
+		if (! locked) {
+			lockScheduler.activity();
+		}
 		if (! textFieldChanged && ! locked) {
 			textFieldChanged = true;
 			saveItem.setEnabled(true);
@@ -710,6 +861,7 @@ public class Editor extends Gui {
 		 * @param e the ActionEvent to process
 		 */
 		public void actionPerformed(ActionEvent e) {
+			editor.closeDatabase();
 			System.exit(0);
 		}
 	}
@@ -874,7 +1026,7 @@ public class Editor extends Gui {
 						// save entries to csv file
 						editor.ring.save(filename);
 						dbFilename = filename;
-						// FIXME set window title & dyntree root to reflect new filename
+						// FIXME set window title to reflect new filename
 						
 						msgInformation("Keyring saved to: " + filename);
 					}
@@ -928,7 +1080,7 @@ public class Editor extends Gui {
 				try {
 					editor.ring.save(url);
 					dbFilename = url;
-					// FIXME set window title & dyntree root to reflect new URL
+					// FIXME set window title to reflect new URL
 					msgInformation("Keyring saved to: " + url);
 				}
 				catch(Exception ex) {
@@ -1126,16 +1278,14 @@ public class Editor extends Gui {
 					// register new item to vector entries
 					editor.ring.addItem(myItem);
 
-					// update tree view
-					editor.dynTree.populate();
+					// update item list
+					editor.itemList.insert(myItem);
 
-					// save database
-					editor.ring.save(dbFilename);
+					// save database in the background
+					saver.itemSaved(editor.ring, dbFilename, myItem);
 
 					// show new item
-					editor.dynTree.show(myItem);
-					
-					msgInformation("Entries saved to: " + editor.dbFilename);
+					editor.itemList.show(myItem);
 				}
 			}
 			catch(Exception ex) {
@@ -1166,13 +1316,11 @@ public class Editor extends Gui {
 		 * @param e the ActionEvent to process
 		 */
 		public void actionPerformed(ActionEvent e) {
-			DefaultMutableTreeNode node = editor.dynTree.getLastNode();
+			Item myItem = editor.itemList.getSelectedItem();
 
 			try {
-				// last selected tree node
-				if(node != null) {
-					// get updated item
-					Item myItem = editor.dynTree.getItem(node);
+				// selected item
+				if(myItem != null) {
 
 					// save changes
 					myItem.setTitle(editor.currentTitle.getText());
@@ -1182,17 +1330,15 @@ public class Editor extends Gui {
 					myItem.setNotes(editor.currentNotes.getText());
 					myItem.setCategoryId(editor.currentCategory.getSelectedIndex());
 
-					// update tree view
-					editor.dynTree.populate();
+					// update item list
+					editor.itemList.update(myItem);
 
-					// save database
-					editor.ring.save(dbFilename);
+					// save database in the background
+					saver.itemSaved(editor.ring, dbFilename, myItem);
 					
 					// Redisplay the item
-					editor.dynTree.show(myItem);
+					editor.itemList.show(myItem);
 					editor.showItem();
-
-					msgInformation("Entries saved to: " + editor.dbFilename);
 				}
 			}
 			catch(Exception ex) {
@@ -1223,26 +1369,17 @@ public class Editor extends Gui {
 		 * @param e the ActionEvent to process
 		 */
 		public void actionPerformed(ActionEvent e) {
-			DefaultMutableTreeNode node = editor.dynTree.getLastNode();
-
-			if(node != null) {
-				Item myItem = editor.dynTree.getItem(node);
+			Item myItem = editor.itemList.getSelectedItem();
 
+			if(myItem != null) {
 				// delete item
 				editor.ring.removeItem(myItem);
 
-				// update tree view
-				editor.dynTree.populate();
+				// update item list
+				editor.itemList.remove(myItem);
 
-				// save changes
-				try {
-					editor.ring.save(dbFilename);
-
-					msgInformation("Item " + myItem.getTitle() + " deleted. Database " + editor.dbFilename + " updated.");
-				}
-				catch(Exception ex) {
-					msgError(ex, "delItemListener", false);
-				}
+				// save changes in the background
+				saver.itemRemoved(editor.ring, dbFilename, myItem);
 			}
 		}
 	}
@@ -1279,11 +1416,11 @@ public class Editor extends Gui {
 		}
 	}
 
-	// tree
+	// item list
 	/**
-	 * TreeSelectionListener: show selected item.
+	 * ListSelectionListener: show selected item.
 	 */
-	public class treeSelectionListener implements TreeSelectionListener {
+	public class itemSelectionListener implements ListSelectionListener {
 		protected Editor editor;
 
 		/**
@@ -1291,7 +1428,7 @@ public class Editor extends Gui {
 		 *
 		 * @param editor Reference to class Editor
 		 */
-		protected treeSelectionListener(Editor editor) {
+		protected itemSelectionListener(Editor editor) {
 			this.editor = editor;
 		}
 
@@ -1300,13 +1437,15 @@ public class Editor extends Gui {
 		 *
 		 * @param e the ActionEvent to process
 		 */
-		public void valueChanged(TreeSelectionEvent e) {
-			editor.showItem();
+		public void valueChanged(ListSelectionEvent e) {
+			if (! e.getValueIsAdjusting()) {
+				editor.showItem();
+			}
 		}
 	}
 
 	/**
-	 * CategorySelectionListener: filter tree view according to selected category.
+	 * CategorySelectionListener: filter item list according to selected category.
 	 */
 	public class CategorySelectionListener implements ActionListener {
 		protected Editor editor;
@@ -1321,17 +1460,68 @@ public class Editor extends Gui {
 		}
 
 		/**
-		 * This method filters the tree view according to selected category.
+		 * This method filters the item list according to selected category.
 		 *
 		 * @param e the ActionEvent to process
 		 */
 		public void actionPerformed(ActionEvent e) {
-			editor.dynTree.setCategoryFilter(editor.categoryList.getSelectedIndex());
+			editor.itemList.setCategoryFilter(editor.categoryList.getSelectedIndex());
 
 			editor.showItem();
 		}
 	}
 
+	/**
+	 * SortListener: sort the item list as chosen in the View menu.
+	 */
+	public class SortListener implements ActionListener {
+		protected Editor editor;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param editor Reference to class Editor
+		 */
+		public SortListener(Editor editor) {
+			this.editor = editor;
+		}
+
+		/**
+		 * This method sorts the item list by the checked order.
+		 *
+		 * @param e the ActionEvent to process
+		 */
+		public void actionPerformed(ActionEvent e) {
+			for (int i = 0; i < ItemList.ORDERS.length; i++) {
+				if (editor.sortMenuItems[i].isSelected()) {
+					editor.itemList.setSortOrder(ItemList.ORDERS[i],
+							editor.reverseMenuItem.isSelected());
+				}
+			}
+		}
+	}
+
+	/**
+	 * SortOrderListener: keep the View menu in step with sorting done by
+	 * clicking the item list's column headers.
+	 */
+	public class SortOrderListener implements PropertyChangeListener {
+		protected Editor editor;
+
+		/**
+		 * Default constructor.
+		 *
+		 * @param editor Reference to class Editor
+		 */
+		public SortOrderListener(Editor editor) {
+			this.editor = editor;
+		}
+
+		public void propertyChange(PropertyChangeEvent e) {
+			editor.showSortOrder();
+		}
+	}
+
 	/**
 	 * currentCategorySelectionListener: check if item category is changed an set button "Save" according.
 	 */
@@ -1411,9 +1601,8 @@ public class Editor extends Gui {
 		 */
 		public void actionPerformed(ActionEvent e) {
 			if(editor.locked == false) {
-				editor.setBtnLock(true, true);
-				editor.toggleButtonsAndFields(false, false);
-				editor.clearItem();
+				editor.lockScheduler.lock();
+				editor.lockEditor();
 			}
 			else {
 				if(editor.checkPassword() == true) {
@@ -34,8 +34,10 @@ import javax.swing.*;
 import java.util.*;
 import java.awt.*;
 
+import com.otisbean.keyring.Ring;
+
 /**
- * This class setup the gui and the password timeout functions.
+ * This class setup the gui.  The password timeout is in LockScheduler.
  */
 public class Gui {
 	// ----------------------------------------------------------------
@@ -50,6 +52,32 @@ public class Gui {
      */
     protected static long PASSWORD_TIMEOUT = 60000; // default: 1 minute = 60 s * 1000 ms
 
+    /**
+     * Open databases in field crypto mode, see Ring.setFieldCrypto().
+     */
+    protected static boolean FIELD_CRYPTO = false;
+
+    /**
+     * Journal single item changes instead of rewriting the whole database,
+     * see Ring.setJournaling().
+     */
+    protected static boolean JOURNAL = false;
+
+    /**
+     * Number of previous versions kept when saving, see Ring.setBackupCount().
+     */
+    protected static int BACKUP_COUNT = 0;
+
+    /**
+     * Memory-map local databases when loading them, see Ring.setMappedLoad().
+     */
+    protected static boolean MAPPED_LOAD = true;
+
+    /**
+     * Initial sort order of the item list, one of ItemList.ORDERS.
+     */
+    protected static int SORT_ORDER = Ring.BY_TITLE;
+
 	// MenuBar
 	protected JMenuBar menuBar;
 	// File
@@ -59,6 +87,12 @@ public class Gui {
 	protected JMenuItem saveToURLMenuItem;
 	protected JMenuItem closeMenuItem;
 	protected JMenuItem quitMenuItem;
+	// View
+	/**
+	 * One per ItemList.ORDERS entry.
+	 */
+	protected JRadioButtonMenuItem[] sortMenuItems;
+	protected JCheckBoxMenuItem reverseMenuItem;
 	// Tools
 	protected JMenuItem categoriesMenuItem;
 	protected JMenuItem csvMenuItem;
@@ -70,7 +104,7 @@ public class Gui {
 
 	// itemListPane
 	protected JComboBox categoryList;
-	protected DynamicTree dynTree;
+	protected ItemList itemList;
 
 	// itemPane
 	protected JComboBox currentCategory;
@@ -88,84 +122,6 @@ public class Gui {
     protected JButton btnLock;
 	protected JCheckBox currentPasswordShow;
 
-	// Password Timeout -----------------------------------------------
-	/**
-	 * This class handles the password timeout.
-	 * It is started by class Editor as a thread.
-	 */
-	protected class PasswordTimeoutWorker implements Runnable {
-		/**
-		 * Time when password timeout started plus user defined password timeout
-		 */
-		private Date endDate = null;
-
-		private Object sleepGate = new Object();
-
-		/**
-		 * Default constructor.
-		 *
-		 * @param editor Reference to class Editor
-		 */
-		public PasswordTimeoutWorker(Editor editor) {
-		}
-
-		/**
-		 * Sets the variable endDate to new timeout.
-		 */
-		public synchronized void restartTimeout() {
-			endDate = new Date(System.currentTimeMillis() + PASSWORD_TIMEOUT);
-
-			synchronized (sleepGate) {
-				sleepGate.notifyAll();
-			}
-		}
-
-		/**
-		 * Sets the variable endDate to null and forces a timeout.
-		 */
-		public synchronized void setTimeout() {
-			endDate = null;
-		}
-
-		/**
-		 * Returns variable endDate.
-		 */
-		public synchronized Date getEndDate() {
-			return endDate;
-		}
-
-		/**
-		 * Timeout thread.
-		 */
-		public void run() {
-			while(true) {
-				if(endDate != null) {
-					long difference = endDate.getTime() - System.currentTimeMillis();
-
-					// timed out
-					if(difference <= 0) {
-						endDate = null;
-					}
-
-					try {
-						Thread.sleep(1000); // sleep 1 s
-					}
-					catch (InterruptedException ignore) {};
-				}
-				else { // timed out
-					try {
-						synchronized (sleepGate) {
-							sleepGate.wait();
-						}
-					}
-					catch (Exception e) {
-						e.printStackTrace();
-					}
-				}
-			}
-		}
-    }
-
 	// ----------------------------------------------------------------
 	// protected ------------------------------------------------------
 	// ----------------------------------------------------------------
@@ -206,6 +162,23 @@ public class Gui {
 		quitMenuItem = new JMenuItem("Quit", KeyEvent.VK_Q);
 		fileMenu.add(quitMenuItem);
 
+		JMenu viewMenu = new JMenu("View");
+		viewMenu.setMnemonic(KeyEvent.VK_V);
+		menuBar.add(viewMenu);
+
+		JMenu sortMenu = new JMenu("Sort by");
+		viewMenu.add(sortMenu);
+		ButtonGroup sortGroup = new ButtonGroup();
+		sortMenuItems = new JRadioButtonMenuItem[ItemList.ORDERS.length];
+		for (int i = 0; i < ItemList.ORDERS.length; i++) {
+			sortMenuItems[i] = new JRadioButtonMenuItem(ItemList.ORDER_NAMES[i]);
+			sortGroup.add(sortMenuItems[i]);
+			sortMenu.add(sortMenuItems[i]);
+		}
+		sortMenu.addSeparator();
+		reverseMenuItem = new JCheckBoxMenuItem("Reverse order");
+		sortMenu.add(reverseMenuItem);
+
 		JMenu catMenu = new JMenu("Tools");
 		catMenu.setMnemonic(KeyEvent.VK_T);
 		menuBar.add(catMenu);
@@ -246,7 +219,7 @@ public class Gui {
 
 		// Gui Elements
 		categoryList = new JComboBox();
-		dynTree = new DynamicTree(editor);
+		itemList = new ItemList(editor);
 
 		currentCategory = new JComboBox();
 		currentTitle = new JTextField();
@@ -295,8 +268,8 @@ public class Gui {
 		c.weightx = 1.0;
 		c.weighty = 1.0;
 
-		gridbag1.setConstraints(dynTree, c);
-		itemListPane.add(dynTree);
+		gridbag1.setConstraints(itemList, c);
+		itemListPane.add(itemList);
 
 		// Item-Pane -------------------------------------------------
 		GridBagLayout gridbag2 = new GridBagLayout();
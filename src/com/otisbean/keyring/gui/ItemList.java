@@ -0,0 +1,393 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.otisbean.keyring.gui;
+
+import java.awt.GridLayout;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.ListSelectionModel;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableColumnModel;
+
+import com.otisbean.keyring.Item;
+import com.otisbean.keyring.Ring;
+
+/**
+ * The list of items in the left pane, as a table of title, category and a
+ * date: changed, unless sorted by created or viewed.
+ *
+ * Nothing is copied: the model reads its rows straight out of one of the
+ * Ring's sorted views (Ring.getSortedItems()), and the table has fixed
+ * height rows, so it only ever lays out and renders the rows that are
+ * visible.  A Ring with a million items scrolls like one with ten.
+ * Clicking a column header sorts by that column, clicking it again
+ * reverses the order, which just reads the view from the other end.
+ * setSortOrder() does the same for the View menu, which listens for the
+ * "sortOrder" and "descending" properties to keep up with the headers.
+ */
+public class ItemList extends JPanel {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The sort orders, as offered by the View menu, and their names.
+	 */
+	public static final int[] ORDERS = {
+		Ring.BY_TITLE, Ring.BY_CATEGORY, Ring.BY_CREATED, Ring.BY_CHANGED, Ring.BY_VIEWED
+	};
+	public static final String[] ORDER_NAMES = {
+		"Title", "Category", "Created", "Changed", "Viewed"
+	};
+
+	private static final int TITLE_COLUMN = 0;
+	private static final int CATEGORY_COLUMN = 1;
+	private static final int DATE_COLUMN = 2;
+	private static final int COLUMNS = 3;
+
+	private final Editor editor;
+	private final JTable table;
+	private final ItemModel model = new ItemModel();
+
+	/**
+	 * Category-filter (0 = show all)
+	 */
+	private int filterCategory = 0;
+	private int sortOrder = Ring.BY_TITLE;
+	private boolean descending;
+	/**
+	 * Shown in the date column, the last date sorted by.
+	 */
+	private int dateOrder = Ring.BY_CHANGED;
+
+	/**
+	 * Rows of the table.  Reads from the current sorted view of the Ring.
+	 */
+	private class ItemModel extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+
+		private List<Item> items = Collections.emptyList();
+		private Ring ring;
+
+		Item getItem(int row) {
+			int size = items.size();
+			if (row < 0 || row >= size) {
+				return null;
+			}
+			return items.get(descending ? size - 1 - row : row);
+		}
+
+		/**
+		 * @return The row of item, or -1 if it isn't shown.
+		 */
+		int rowOf(Item item) {
+			int index = items.indexOf(item);
+			if (index < 0) {
+				return -1;
+			}
+			return descending ? items.size() - 1 - index : index;
+		}
+
+		public int getRowCount() {
+			return items.size();
+		}
+
+		public int getColumnCount() {
+			return COLUMNS;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+			return nameOf(orderOf(column));
+		}
+
+		public Object getValueAt(int row, int column) {
+			Item item = getItem(row);
+			if (null == item) {
+				return null;
+			}
+			switch (column) {
+			case TITLE_COLUMN:
+				return item.getTitle();
+			case CATEGORY_COLUMN:
+				try {
+					return ring.categoryNameForId(item.getCategoryId());
+				} catch (RuntimeException e) {
+					// Category deleted out from under the item
+					return "";
+				}
+			default:
+				long date;
+				if (Ring.BY_CREATED == dateOrder) {
+					date = item.getCreated();
+				} else if (Ring.BY_VIEWED == dateOrder) {
+					date = item.getViewed();
+				} else {
+					date = item.getChanged();
+				}
+				return ring.formatDate(date, false);
+			}
+		}
+	}
+
+	/**
+	 * @param editor Reference to the class Editor
+	 */
+	public ItemList(Editor editor) {
+		super(new GridLayout(1,0));
+
+		this.editor = editor;
+
+		table = new JTable(model);
+		table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		table.setShowGrid(false);
+		table.setFillsViewportHeight(true);
+		TableColumnModel columns = table.getColumnModel();
+		columns.getColumn(TITLE_COLUMN).setPreferredWidth(200);
+		columns.getColumn(CATEGORY_COLUMN).setPreferredWidth(90);
+		columns.getColumn(DATE_COLUMN).setPreferredWidth(90);
+		table.getTableHeader().setReorderingAllowed(false);
+		table.getTableHeader().addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				int column = table.columnAtPoint(e.getPoint());
+				if (column >= 0) {
+					int order = orderOf(table.convertColumnIndexToModel(column));
+					setSortOrder(order, order == sortOrder && ! descending);
+				}
+			}
+		});
+		showSortColumn();
+
+		JScrollPane scrollPane = new JScrollPane(table);
+		add(scrollPane);
+	}
+
+	/**
+	 * @return The table, e.g. to listen to.
+	 */
+	public JTable getTable() {
+		return table;
+	}
+
+	public void addListSelectionListener(ListSelectionListener listener) {
+		table.getSelectionModel().addListSelectionListener(listener);
+	}
+
+	/**
+	 * @return The selected item, or null.
+	 */
+	public Item getSelectedItem() {
+		return model.getItem(table.getSelectedRow());
+	}
+
+	/**
+	 * Select an item and scroll it into view, if it's shown.
+	 */
+	public void show(Item item) {
+		int row = model.rowOf(item);
+		if (row >= 0) {
+			table.getSelectionModel().setSelectionInterval(row, row);
+			table.scrollRectToVisible(table.getCellRect(row, 0, true));
+		}
+	}
+
+	public int getSortOrder() {
+		return sortOrder;
+	}
+
+	public boolean isDescending() {
+		return descending;
+	}
+
+	/**
+	 * Sort the list, keeping the selected item selected.  The view for the
+	 * order is built by the Ring the first time it's used, after that it's
+	 * kept up to date, so switching back and forth costs nothing.
+	 *
+	 * @param order One of ORDERS.
+	 * @param descending Reverse the order.
+	 */
+	public void setSortOrder(int order, boolean descending) {
+		if (order == sortOrder && descending == this.descending) {
+			return;
+		}
+		Item selected = getSelectedItem();
+		int oldOrder = sortOrder;
+		boolean oldDescending = this.descending;
+		sortOrder = order;
+		this.descending = descending;
+		if (Ring.BY_CREATED == order || Ring.BY_CHANGED == order || Ring.BY_VIEWED == order) {
+			dateOrder = order;
+		}
+		showSortColumn();
+		refilter();
+		if (null != selected) {
+			show(selected);
+		}
+		firePropertyChange("sortOrder", oldOrder, order);
+		firePropertyChange("descending", oldDescending, descending);
+	}
+
+	/**
+	 * @return The sort order of a column.
+	 */
+	private int orderOf(int column) {
+		switch (column) {
+		case TITLE_COLUMN:
+			return Ring.BY_TITLE;
+		case CATEGORY_COLUMN:
+			return Ring.BY_CATEGORY;
+		default:
+			return dateOrder;
+		}
+	}
+
+	/**
+	 * @return The name of a sort order, from ORDER_NAMES.
+	 */
+	public static String nameOf(int order) {
+		for (int i = 0; i < ORDERS.length; i++) {
+			if (ORDERS[i] == order) {
+				return ORDER_NAMES[i];
+			}
+		}
+		throw new IllegalArgumentException("No sort order " + order);
+	}
+
+	/**
+	 * @return The sort order with a name from ORDER_NAMES, ignoring case,
+	 * or -1 if there's none.
+	 */
+	public static int orderNamed(String name) {
+		for (int i = 0; i < ORDERS.length; i++) {
+			if (ORDER_NAMES[i].equalsIgnoreCase(name)) {
+				return ORDERS[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Name the columns, and mark the sort column's header with the
+	 * direction.
+	 */
+	private void showSortColumn() {
+		TableColumnModel columns = table.getColumnModel();
+		for (int i = 0; i < COLUMNS; i++) {
+			String name = nameOf(orderOf(i));
+			if (orderOf(i) == sortOrder) {
+				name += descending ? " \u25bc" : " \u25b2";
+			}
+			columns.getColumn(table.convertColumnIndexToView(i)).setHeaderValue(name);
+		}
+		table.getTableHeader().repaint();
+	}
+
+	/**
+	 * This method sets the category-filter and refreshes the list.
+	 *
+	 * @return True if category changed otherwise false
+	 */
+	public boolean setCategoryFilter(int filterCategory) {
+		boolean changed = (filterCategory != this.filterCategory);
+		this.filterCategory = filterCategory;
+
+		refilter();
+
+		return changed;
+	}
+
+	/**
+	 * This method sets the category-filter to zero (show all) and refreshes the list.
+	 */
+	public void clearFilter() {
+		filterCategory = 0;
+		refilter();
+	}
+
+	/**
+	 * Show the items of the Editor's current Ring.
+	 */
+	public void populate() {
+		refilter();
+	}
+
+	/**
+	 * Show nothing.
+	 */
+	public void clear() {
+		model.items = Collections.emptyList();
+		model.ring = null;
+		model.fireTableDataChanged();
+	}
+
+	/**
+	 * Switch to the view for the current Ring, filter and sort order.  That's
+	 * only a lookup unless the view hasn't been asked for before.
+	 */
+	private void refilter() {
+		Ring ring = editor.getRing();
+		if (null == ring) {
+			clear();
+			return;
+		}
+		model.ring = ring;
+		model.items = ring.getSortedItems(sortOrder, filterCategory - 1);
+		model.fireTableDataChanged();
+	}
+
+	/**
+	 * Show a new item, which has already been added to the Ring.
+	 */
+	public void insert(Item item) {
+		if (model.ring != editor.getRing()) {
+			populate();
+			return;
+		}
+		// Not just a row inserted, it may have replaced an item of the same title
+		model.fireTableDataChanged();
+	}
+
+	/**
+	 * Take a deleted item, already gone from the Ring, out of the list.
+	 */
+	public void remove(Item item) {
+		model.fireTableDataChanged();
+	}
+
+	/**
+	 * Move an edited item, whose title or category may have changed.
+	 */
+	public void update(Item item) {
+		if (model.ring != editor.getRing()) {
+			populate();
+			return;
+		}
+		model.fireTableDataChanged();
+	}
+}
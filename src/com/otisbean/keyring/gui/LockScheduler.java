@@ -0,0 +1,212 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.otisbean.keyring.gui;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.SwingUtilities;
+
+import com.otisbean.keyring.Ring;
+
+/**
+ * Locks the Editor's Ring after a period of inactivity.
+ *
+ * While unlocked there's exactly one task scheduled, for the deadline.
+ * Activity just pushes the deadline (a volatile) forward, without touching
+ * the task; when the task comes due early it reschedules itself for
+ * whatever is left.  So an idle Editor doesn't wake up at all, and a busy
+ * one wakes up at most once per timeout.
+ *
+ * When the deadline passes, the Ring is locked on the timer thread: pending
+ * saves are written, every Item is re-encrypted and its plaintext dropped,
+ * and the Ring forgets its key (see Ring.clearKeyCache()), so unlocking
+ * again means checking the password against the Ring's check data.  Then
+ * the Listener hears about it, on the event dispatch thread, to clear
+ * whatever the Editor is showing.
+ */
+public class LockScheduler {
+
+	private static final Logger LOG = Logger.getLogger(LockScheduler.class.getName());
+
+	/**
+	 * Told about a timeout, on the event dispatch thread, after the Ring has
+	 * been locked.
+	 */
+	public interface Listener {
+		void timedOut();
+	}
+
+	private final Listener listener;
+	private final SaveScheduler saver;
+	private final ScheduledExecutorService executor;
+	private final long timeoutNanos;
+
+	/**
+	 * System.nanoTime() to lock at.  Only meaningful while unlocked.
+	 */
+	private volatile long deadline;
+
+	// Guarded by this
+	private Ring ring;
+	private ScheduledFuture<?> scheduled;
+
+	/**
+	 * @param timeoutMillis Inactivity, in milliseconds, before locking.
+	 * @param saver Flushed before the key goes, which saves need.
+	 */
+	public LockScheduler(long timeoutMillis, SaveScheduler saver, Listener listener) {
+		this.listener = listener;
+		this.saver = saver;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Keyring lock timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Start the timeout, after the password for ring has been accepted.
+	 */
+	public synchronized void unlocked(Ring ring) {
+		this.ring = ring;
+		deadline = System.nanoTime() + timeoutNanos;
+		if (null == scheduled) {
+			schedule(timeoutNanos);
+		}
+	}
+
+	/**
+	 * Restart the timeout, if we're unlocked.  Cheap enough to call on
+	 * every user action.
+	 */
+	public void activity() {
+		// A volatile write, the scheduled task picks it up when it runs
+		deadline = System.nanoTime() + timeoutNanos;
+	}
+
+	/**
+	 * @return True if the Ring has been locked, by timing out or lock(), or
+	 * was never unlocked.
+	 */
+	public synchronized boolean isLocked() {
+		return null == scheduled;
+	}
+
+	/**
+	 * Lock the Ring now, in the background, without telling the Listener.
+	 */
+	public void lock() {
+		final Ring locking;
+		synchronized (this) {
+			if (null == scheduled) {
+				return;
+			}
+			scheduled.cancel(false);
+			scheduled = null;
+			locking = ring;
+			ring = null;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				lockRing(locking);
+			}
+		});
+	}
+
+	/**
+	 * Forget the Ring, e.g. because it's been closed, without locking it.
+	 */
+	public synchronized void cancel() {
+		if (null != scheduled) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+		ring = null;
+	}
+
+	private void schedule(long delayNanos) {
+		scheduled = executor.schedule(new Runnable() {
+			public void run() {
+				expire();
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Runs on the timer thread.
+	 */
+	private void expire() {
+		Ring locking;
+		synchronized (this) {
+			if (null == scheduled) {
+				// lock() or cancel() got here first
+				return;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining > 0) {
+				schedule(remaining);
+				return;
+			}
+			scheduled = null;
+			locking = ring;
+			ring = null;
+		}
+		lockRing(locking);
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				listener.timedOut();
+			}
+		});
+	}
+
+	private void lockRing(Ring locking) {
+		if (null == locking) {
+			return;
+		}
+		saver.flush();
+		try {
+			locking.clearPlaintextCache();
+			locking.lockAll();
+		}
+		catch (Exception e) {
+			LOG.log(Level.WARNING, "Couldn't lock every item", e);
+		}
+		locking.clearKeyCache();
+	}
+
+	/**
+	 * Stop the timer thread, without locking.
+	 */
+	public void shutdown() {
+		cancel();
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.otisbean.keyring.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Frame;
+import java.awt.SecondaryLoop;
+import java.awt.Toolkit;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.WindowConstants;
+
+/**
+ * Runs a slow job, like opening a big database, on a SwingWorker, with a
+ * progress bar and a Cancel button.
+ *
+ * run() doesn't return until the job is done, but keeps the event
+ * dispatch thread going meanwhile (with a SecondaryLoop), so the caller
+ * can be written as if the job ran in line.  The owner frame is disabled
+ * for the duration, and the dialog only appears if the job takes longer
+ * than SHOW_AFTER, so quick jobs don't flash it up.
+ *
+ * Cancel interrupts the worker thread; the job has to notice.  run()
+ * still waits for it to wind down before reporting the cancellation, so
+ * the caller never races a job that's still going.
+ */
+public class ProgressDialog extends JDialog {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Milliseconds a job runs before the dialog is shown.
+	 */
+	public static final int SHOW_AFTER = 250;
+
+	/**
+	 * A job for run().
+	 */
+	public interface Task<T> {
+		/**
+		 * Runs on a worker thread.
+		 *
+		 * @param progress Where to report progress, see setProgress().
+		 */
+		T run(ProgressDialog progress) throws Exception;
+	}
+
+	private final JProgressBar bar = new JProgressBar(0, 100);
+	private final JLabel note = new JLabel(" ");
+
+	// The thread running the job, and whether it's been cancelled
+	private final Object lock = new Object();
+	private Thread runner;
+	private boolean cancelled;
+
+	// Latest progress, shown on the event dispatch thread
+	private volatile int percent = -1;
+	private volatile String text = " ";
+	private final AtomicBoolean posted = new AtomicBoolean();
+
+	/**
+	 * @param owner Frame that's disabled while a job runs.
+	 * @param title Dialog title, e.g. what's being opened.
+	 */
+	public ProgressDialog(Frame owner, String title) {
+		super(owner, title, false);
+
+		bar.setIndeterminate(true);
+		JButton cancel = new JButton("Cancel");
+		cancel.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				cancel();
+			}
+		});
+		setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+		addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				cancel();
+			}
+		});
+
+		JPanel panel = new JPanel(new BorderLayout(5, 5));
+		panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+		panel.add(note, BorderLayout.NORTH);
+		panel.add(bar, BorderLayout.CENTER);
+		JPanel buttons = new JPanel();
+		buttons.add(cancel);
+		panel.add(buttons, BorderLayout.SOUTH);
+		setContentPane(panel);
+		setSize(360, 130);
+		setLocationRelativeTo(owner);
+	}
+
+	/**
+	 * Report progress.  May be called from any thread, as often as you
+	 * like; updates are coalesced onto the event dispatch thread.
+	 *
+	 * @param done Work done so far.
+	 * @param total Work to do, or a negative number if it isn't known.
+	 * @param text What's going on.
+	 */
+	public void setProgress(long done, long total, String text) {
+		percent = total > 0 ? (int) Math.min(100, done * 100 / total) : -1;
+		this.text = text;
+		if (posted.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					posted.set(false);
+					showProgress();
+				}
+			});
+		}
+	}
+
+	private void showProgress() {
+		int current = percent;
+		bar.setIndeterminate(current < 0);
+		if (current >= 0) {
+			bar.setValue(current);
+		}
+		note.setText(text);
+	}
+
+	private void cancel() {
+		synchronized (lock) {
+			cancelled = true;
+			if (null != runner) {
+				runner.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Run task on a worker thread, and wait for it, showing its progress.
+	 * Call it from the event dispatch thread, or before the GUI is up.
+	 *
+	 * @return What the task returned.
+	 * @throws CancellationException If the user cancelled.  The task has
+	 * returned by then.
+	 * @throws Exception Whatever the task threw.
+	 */
+	public <T> T run(final Task<T> task) throws Exception {
+		final SecondaryLoop loop = Toolkit.getDefaultToolkit()
+			.getSystemEventQueue().createSecondaryLoop();
+		SwingWorker<T, Void> job = new SwingWorker<T, Void>() {
+			@Override
+			protected T doInBackground() throws Exception {
+				synchronized (lock) {
+					if (cancelled) {
+						throw new CancellationException();
+					}
+					runner = Thread.currentThread();
+				}
+				try {
+					return task.run(ProgressDialog.this);
+				} finally {
+					synchronized (lock) {
+						runner = null;
+						// Don't leave a late cancel() on the pool thread
+						Thread.interrupted();
+					}
+				}
+			}
+
+			@Override
+			protected void done() {
+				loop.exit();
+			}
+		};
+		Timer showTimer = new Timer(SHOW_AFTER, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				showProgress();
+				setVisible(true);
+			}
+		});
+		showTimer.setRepeats(false);
+
+		synchronized (lock) {
+			cancelled = false;
+		}
+		getOwner().setEnabled(false);
+		try {
+			job.execute();
+			showTimer.start();
+			if (SwingUtilities.isEventDispatchThread()) {
+				// done() can't run before this, it's queued behind us
+				loop.enter();
+			} else {
+				// Startup, the EDT is free to run the dialog
+				waitFor(job);
+			}
+		} finally {
+			showTimer.stop();
+			dispose();
+			getOwner().setEnabled(true);
+		}
+		synchronized (lock) {
+			if (cancelled) {
+				throw new CancellationException("Cancelled");
+			}
+		}
+		try {
+			return job.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	/**
+	 * Wait for job, ignoring how it ended, which run() reports.
+	 */
+	private static void waitFor(SwingWorker<?, ?> job) {
+		try {
+			job.get();
+		} catch (Exception e) {
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -63,13 +63,20 @@ public class Prop {
 	// ----------------------------------------------------------------
 	/**
 	 * This method opens the file keyringeditor.ini and reads the
-	 * parameters "TitleSeparator", "CsvSeparator" and "PasswordTimeout".
+	 * parameters "TitleSeparator", "CsvSeparator", "PasswordTimeout",
+	 * "FieldCrypto", "Journal", "BackupCount", "MappedLoad" and "SortBy".
 	 *
 	 * If no file is found, default values are used.
 	 *
 	 * TitleSeparator separates levels in an entry title for the tree view ('/').
 	 * CsvSeparator is used as the separator for converting entries to a csv-file (';').
 	 * PasswordTimeout is the time in minutes after inactivity forces a lock of the application ('1').
+	 * FieldCrypto keeps each item field encrypted on its own, so it can be read alone ('false').
+	 * Journal saves item changes to a journal next to the database, instead of rewriting it ('false').
+	 * BackupCount is the number of previous versions of the database kept on save ('0').
+	 * MappedLoad memory-maps local databases to read them ('true').
+	 * SortBy is the initial order of the item list, one of Title, Category,
+	 * Created, Changed or Viewed ('Title').
 	 */
 	public void setup() {
 		Properties props = new Properties();
@@ -98,5 +105,35 @@ public class Prop {
 
 			Gui.PASSWORD_TIMEOUT = timeout * 60 * 1000;  // ms // Default: 1 minute
 		}
+
+		String fieldCrypto = props.getProperty("FieldCrypto");
+		if(fieldCrypto != null) {
+			Gui.FIELD_CRYPTO = Boolean.parseBoolean(fieldCrypto.trim()); // Default: false
+		}
+
+		String journal = props.getProperty("Journal");
+		if(journal != null) {
+			Gui.JOURNAL = Boolean.parseBoolean(journal.trim()); // Default: false
+		}
+
+		String backupCount = props.getProperty("BackupCount");
+		if(backupCount != null) {
+			Gui.BACKUP_COUNT = Integer.parseInt(backupCount.trim()); // Default: 0
+		}
+
+		String mappedLoad = props.getProperty("MappedLoad");
+		if(mappedLoad != null) {
+			Gui.MAPPED_LOAD = Boolean.parseBoolean(mappedLoad.trim()); // Default: true
+		}
+
+		String sortBy = props.getProperty("SortBy");
+		if(sortBy != null) {
+			int order = ItemList.orderNamed(sortBy.trim());
+			if (order < 0) {
+				System.err.println("Prop.java: Unknown SortBy " + sortBy + ". Sorting by title.");
+			} else {
+				Gui.SORT_ORDER = order; // Default: Title
+			}
+		}
 	}
 }
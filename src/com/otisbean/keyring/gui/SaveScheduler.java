@@ -0,0 +1,270 @@
+/*
+ * @author Dirk Bergstrom
+ *
+ * Keyring Desktop Client - Easy password management on your phone or desktop.
+ * Copyright (C) 2009-2010, Dirk Bergstrom, keyring@otisbean.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.otisbean.keyring.gui;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import com.otisbean.keyring.Item;
+import com.otisbean.keyring.Ring;
+
+/**
+ * Saves the Editor's changes on a background thread.
+ *
+ * Changes are collected for DELAY ms after the first one, then written in
+ * one go: a single journal write if the Ring is journaling, otherwise one
+ * full save.  An item changed several times in that window is only written
+ * once.  The Listener hears about the outcome on the event dispatch thread.
+ *
+ * If a save fails, its changes are kept, and go out with the next one, or
+ * with flush().  They only ever go to the Ring and file they were made
+ * to: if they still can't be written when the Editor moves on to another,
+ * they're dropped, and the Listener is told.
+ */
+public class SaveScheduler {
+	/**
+	 * Time in milliseconds that changes are collected before writing them.
+	 */
+	public static final long DELAY = 500;
+
+	/**
+	 * Told about each save, on the event dispatch thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param filename Where the changes were saved.
+		 * @param changes Number of items saved or removed, 0 for a full save.
+		 */
+		void saved(String filename, int changes);
+
+		void saveFailed(String filename, Exception e);
+	}
+
+	private final Listener listener;
+	private final ScheduledExecutorService executor;
+
+	// Guarded by this
+	private Ring ring;
+	private String filename;
+	/**
+	 * Pending items, true if saved, false if removed.
+	 */
+	private Map<Item, Boolean> pending = new IdentityHashMap<Item, Boolean>();
+	private boolean fullSave;
+	private ScheduledFuture<?> scheduled;
+
+	public SaveScheduler(Listener listener) {
+		this.listener = listener;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Keyring saver");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Save an added or changed item.
+	 */
+	public void itemSaved(Ring ring, String filename, Item item) {
+		change(ring, filename, item, true);
+	}
+
+	/**
+	 * Save the removal of an item, already taken out of the Ring.
+	 */
+	public void itemRemoved(Ring ring, String filename, Item item) {
+		change(ring, filename, item, false);
+	}
+
+	/**
+	 * Save the whole Ring, for changes that aren't about a single item.
+	 */
+	public void saveAll(Ring ring, String filename) {
+		change(ring, filename, null, false);
+	}
+
+	private void change(Ring ring, String filename, Item item, boolean saved) {
+		synchronized (this) {
+			if (ring == this.ring && filename.equals(this.filename)) {
+				record(item, saved);
+				if (null == scheduled) {
+					schedule(DELAY);
+				}
+				return;
+			}
+		}
+		// Changes to another Ring or file go out before we switch
+		flush();
+		synchronized (this) {
+			if (ring != this.ring || ! filename.equals(this.filename)) {
+				discardPending();
+			}
+			this.ring = ring;
+			this.filename = filename;
+			record(item, saved);
+			schedule(DELAY);
+		}
+	}
+
+	/**
+	 * Drop changes that failed to save, telling the Listener.
+	 */
+	private void discardPending() {
+		if (pending.isEmpty() && ! fullSave) {
+			return;
+		}
+		final String lostFile = filename;
+		final int lost = pending.size();
+		pending = new IdentityHashMap<Item, Boolean>();
+		fullSave = false;
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				listener.saveFailed(lostFile, new IOException(1 == lost
+						? "An unsaved change was discarded"
+						: "Unsaved changes were discarded"));
+			}
+		});
+	}
+
+	private void record(Item item, boolean saved) {
+		if (null == item) {
+			fullSave = true;
+		} else {
+			pending.put(item, saved);
+		}
+	}
+
+	private Future<?> schedule(long delay) {
+		if (null != scheduled) {
+			scheduled.cancel(false);
+		}
+		scheduled = executor.schedule(new Runnable() {
+			public void run() {
+				save();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		return scheduled;
+	}
+
+	/**
+	 * Write any pending changes now, and wait for them, e.g. before closing.
+	 * Failures are reported to the Listener as usual.
+	 */
+	public void flush() {
+		Future<?> now;
+		synchronized (this) {
+			// Even with nothing pending, this waits out a save in progress
+			now = schedule(0);
+		}
+		try {
+			now.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			// save() reports its own failures
+		}
+	}
+
+	/**
+	 * Runs on the saver thread.
+	 */
+	private void save() {
+		final Ring saveRing;
+		final String saveFile;
+		Map<Item, Boolean> changes;
+		boolean full;
+		synchronized (this) {
+			scheduled = null;
+			if (null == ring || (pending.isEmpty() && ! fullSave)) {
+				return;
+			}
+			saveRing = ring;
+			saveFile = filename;
+			changes = pending;
+			full = fullSave;
+			pending = new IdentityHashMap<Item, Boolean>();
+			fullSave = false;
+		}
+		List<Item> saved = new ArrayList<Item>();
+		List<Item> removed = new ArrayList<Item>();
+		for (Map.Entry<Item, Boolean> change : changes.entrySet()) {
+			(change.getValue() ? saved : removed).add(change.getKey());
+		}
+		final int count = full ? 0 : changes.size();
+		try {
+			if (full) {
+				saveRing.save(saveFile);
+			} else {
+				saveRing.saveChanges(saveFile, saved, removed);
+			}
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					listener.saved(saveFile, count);
+				}
+			});
+		}
+		catch (final Exception e) {
+			final boolean kept;
+			synchronized (this) {
+				// Keep them for next time, unless we've moved on
+				kept = saveRing == ring && saveFile.equals(filename);
+				if (kept) {
+					for (Map.Entry<Item, Boolean> change : changes.entrySet()) {
+						if (! pending.containsKey(change.getKey())) {
+							pending.put(change.getKey(), change.getValue());
+						}
+					}
+					fullSave |= full;
+				}
+			}
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					listener.saveFailed(saveFile, kept ? e : new IOException(
+							"Changes were discarded: " + e.getMessage(), e));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Write pending changes, and stop the saver thread.
+	 */
+	public void shutdown() {
+		flush();
+		executor.shutdown();
+	}
+}